@@ -0,0 +1,66 @@
+package dcpu.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dcpu.assembler.Assembler;
+import dcpu.assembler.ParallelAssembler;
+import dcpu.assembler.parser.AssemblerLexer;
+import dcpu.assembler.parser.TokenStream;
+
+
+/**
+ * Measures the whole assembler (sequential and parallel), and the lexer on its
+ * own, on generated sources of different sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class AssemblerBenchmark {
+	@Param({"1000", "100000", "1000000"})
+	public int lines;
+	
+	private String            source;
+	private ParallelAssembler parallel;
+	
+	@Setup
+	public void setup() {
+		source   = Programs.generateSource(lines);
+		parallel = new ParallelAssembler();
+	}
+	
+	@TearDown
+	public void tearDown() {
+		parallel.shutdown();
+	}
+	
+	@Benchmark
+	public short[] assemble() {
+		return Assembler.assemble(source, "<bench>");
+	}
+	
+	@Benchmark
+	public short[] assembleParallel() {
+		return parallel.assemble(source, "<bench>");
+	}
+	
+	@Benchmark
+	public TokenStream lex() {
+		return AssemblerLexer.tokenize(source, "<bench>");
+	}
+}
@@ -0,0 +1,78 @@
+package dcpu.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import dcpu.emulator.Cpu;
+
+
+/**
+ * Measures the interpreter, one instruction at a time through executeNext, and
+ * whole slices through runFor (which uses the block compiler when enabled).
+ * Each has its own state, as executeNext never uses the compiler.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CpuBenchmark {
+	private static final int INSTRUCTIONS = 1024;
+	private static final int CYCLES       = 100000;
+	
+	@State(Scope.Thread)
+	public static class Interpreted {
+		@Param({"arithmetic", "memcpy", "recursion"})
+		public String program;
+		
+		Cpu cpu;
+		
+		@Setup
+		public void setup() {
+			cpu = new Cpu(null);
+			cpu.initMem(Programs.assemble(program));
+		}
+	}
+	
+	@State(Scope.Thread)
+	public static class Running {
+		@Param({"arithmetic", "memcpy", "recursion"})
+		public String program;
+		
+		@Param({"false", "true"})
+		public boolean compiler;
+		
+		Cpu cpu;
+		
+		@Setup
+		public void setup() {
+			cpu = new Cpu(null);
+			cpu.initMem(Programs.assemble(program));
+			cpu.setCompilerEnabled(compiler);
+		}
+	}
+	
+	/** Instructions per microsecond through executeNext. */
+	@Benchmark
+	@OperationsPerInvocation(INSTRUCTIONS)
+	public long executeNext(Interpreted state) {
+		Cpu cpu = state.cpu;
+		for (int i=0; i<INSTRUCTIONS; i++)
+			cpu.executeNext();
+		return cpu.getCycleCount();
+	}
+	
+	/** Cycles per microsecond through runFor. */
+	@Benchmark
+	@OperationsPerInvocation(CYCLES)
+	public long runFor(Running state) {
+		state.cpu.runFor(CYCLES);
+		return state.cpu.getCycleCount();
+	}
+}
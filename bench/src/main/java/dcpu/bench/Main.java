@@ -0,0 +1,27 @@
+package dcpu.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs the benchmarks like the plain JMH launcher, but writes the results as
+ * JSON (to results.json, unless -rff says otherwise) so that runs can be
+ * compared for regressions.  Takes the usual JMH command line options.
+ */
+public class Main {
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmdLine = new CommandLineOptions(args);
+		
+		ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmdLine);
+		if (!cmdLine.getResultFormat().hasValue())
+			builder.resultFormat(ResultFormatType.JSON);
+		if (!cmdLine.getResult().hasValue())
+			builder.result("results.json");
+		
+		new Runner(builder.build()).run();
+	}
+}
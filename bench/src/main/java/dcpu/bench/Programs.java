@@ -0,0 +1,96 @@
+package dcpu.bench;
+
+import dcpu.assembler.Assembler;
+
+
+/**
+ * The programs and assembler sources that the benchmarks run on.  All of the
+ * programs loop forever, so that a benchmark can execute any number of
+ * instructions without the CPU halting.
+ */
+public class Programs {
+	/** Register arithmetic, with a conditional branch every few instructions. */
+	public static final String ARITHMETIC =
+			":loop  add A, 1\n" +
+			"       mul B, 3\n" +
+			"       xor C, A\n" +
+			"       shl X, 1\n" +
+			"       bor X, A\n" +
+			"       sub Y, B\n" +
+			"       and Z, 0xff\n" +
+			"       ifn A, 0\n" +
+			"         set PC, loop\n" +
+			"       add I, 1\n" +
+			"       set PC, loop\n";
+	
+	/** Copies a 0x1000 word block of memory back and forth. */
+	public static final String MEMORY_COPY =
+			":start set I, 0\n" +
+			":copy  set [0x3000+I], [0x2000+I]\n" +
+			"       set [0x2000+I], [0x4000+I]\n" +
+			"       add I, 1\n" +
+			"       ifn I, 0x1000\n" +
+			"         set PC, copy\n" +
+			"       set PC, start\n";
+	
+	/** Computes fib(12) with naive recursion, over and over again. */
+	public static final String RECURSION =
+			":start set A, 12\n" +
+			"       jsr fib\n" +
+			"       set PC, start\n" +
+			"\n" +
+			":fib   ifg 2, A\n" +
+			"         set PC, POP\n" +
+			"       set PUSH, A\n" +
+			"       sub A, 1\n" +
+			"       jsr fib\n" +
+			"       set B, A\n" +
+			"       set A, POP\n" +
+			"       set PUSH, B\n" +
+			"       sub A, 2\n" +
+			"       jsr fib\n" +
+			"       add A, POP\n" +
+			"       set PC, POP\n";
+	
+	/**
+	 * Returns the named program, assembled.
+	 */
+	public static short[] assemble(String name) {
+		if (name.equals("arithmetic")) return Assembler.assemble(ARITHMETIC, name);
+		if (name.equals("memcpy"))     return Assembler.assemble(MEMORY_COPY, name);
+		if (name.equals("recursion"))  return Assembler.assemble(RECURSION, name);
+		
+		throw new IllegalArgumentException("Unknown program: " + name);
+	}
+	
+	/**
+	 * Generates an assembler source with the given number of lines, mixing
+	 * labels, every addressing mode and forward and backward jumps.
+	 */
+	public static String generateSource(int lines) {
+		String[] body = {
+				"       set A, 0x10",
+				"       set [0x1000+I], B",
+				"       add [X], 12345",
+				"       ifn [0x8000], 0",
+				"         set PC, L%d",
+				"       jsr L%d",
+				"       set PUSH, [SP]",
+				"       shl C, 4",
+		};
+		
+		StringBuilder builder = new StringBuilder(lines * 24);
+		for (int i=0, block=0; i < lines; block++) {
+			builder.append(":L").append(block).append('\n');
+			i++;
+			
+			for (int j=0; j < body.length && i < lines; j++, i++) {
+				// Jump forwards, unless this is the last block.
+				int target = (i + body.length < lines) ? block + 1 : 0;
+				builder.append(String.format(body[j], target)).append('\n');
+			}
+		}
+		
+		return builder.toString();
+	}
+}
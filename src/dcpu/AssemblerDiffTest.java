@@ -0,0 +1,196 @@
+package dcpu;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import dcpu.assembler.Assembler;
+import dcpu.assembler.AssemblySession;
+import dcpu.assembler.ParallelAssembler;
+import dcpu.assembler.parser.AssemblerLexer;
+
+/**
+ * Checks that all the ways to assemble a source agree: Assembler.assemble() on
+ * a String and on a Reader, an AssemblySession edited into the same text, and
+ * a ParallelAssembler.  Each must give the same words, or fail with the same
+ * error, on random sources with and without errors.
+ */
+public class AssemblerDiffTest {
+	private static final String[] OPS = { "set", "ADD", "sub", "ifb", "Jsr", "shl", "foo" };
+	private static final String[] VALUES = {
+		"A", "b", "pop", "PEEK", "0x1f", "65535", "[A]", "[0x1000]", "[0x10+I]", "[J+3]",
+		"[A+l2]", "[l1]", "l2", "l0", "l3", "[PC]", "nolabel", "[pop]", "[", "1 2", "", "0x", "#"
+	};
+	
+	private static int checks, differences;
+	
+	public static void main(String[] args) throws IOException {
+		Random random = new Random(args.length > 0 ? Long.parseLong(args[0]) : 0);
+		ParallelAssembler parallel = new ParallelAssembler(4);
+		
+		try {
+			// Small sources, most of them broken, built up by editing a session.
+			for (int i=0; i<300; i++) {
+				AssemblySession session = new AssemblySession("<input>");
+				List<String> lines = new ArrayList<String>();
+				lines.add("");
+				
+				for (int edit=0; edit<20; edit++) {
+					int start = random.nextInt(lines.size());
+					int end = Math.min(lines.size(), start + random.nextInt(3));
+					List<String> texts = new ArrayList<String>();
+					for (int count=random.nextInt(4); texts.size()<count; )
+						texts.add(randomLine(random));
+					if (start == end && texts.isEmpty())
+						continue;
+					if (end - start == lines.size() && texts.isEmpty())
+						texts.add("");
+					
+					lines.subList(start, end).clear();
+					lines.addAll(start, texts);
+					session.replaceLines(start, end, texts);
+					
+					check(join(lines), session, parallel);
+				}
+			}
+			
+			// Large sources, which the parallel assembler splits into many
+			// chunks, with an error near the end of some.
+			for (int i=0; i<4; i++) {
+				String source = largeSource(random, i);
+				AssemblySession session = new AssemblySession("<input>");
+				session.setText(source);
+				check(source, session, parallel);
+			}
+		} finally {
+			parallel.shutdown();
+		}
+		
+		System.out.println("Differential, " + checks + " sources, " + differences + " differences");
+		if (differences > 0)
+			System.exit(1);
+	}
+	
+	private static void check(String source, AssemblySession session, ParallelAssembler parallel)
+			throws IOException {
+		String expected = result(source, 0, null, null);
+		String inOrder  = inLineOrder(source, expected);
+		String[][] results = {
+			{ inOrder,  result(source, 1, null, null) },
+			{ inOrder,  result(source, 2, session, null) },
+			{ expected, result(source, 3, null, parallel) }
+		};
+		
+		checks++;
+		for (String[] result : results) {
+			if (!result[1].equals(result[0])) {
+				differences++;
+				System.out.println("Source:\n" + source + "\nExpected: " + result[0] + "\nGot: " + result[1]);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Returns what assembling the source should give when lexing errors are
+	 * reported in line order, like from a Reader or a session, from what
+	 * assembling it as a String gives.  A lexing error is then only reported
+	 * if the lines before it assemble (short of undefined labels, which are
+	 * only found at the end).
+	 */
+	private static String inLineOrder(String source, String expected) throws IOException {
+		String[] lines = source.split("\n", -1);
+		
+		for (int row=0; row<lines.length; row++) {
+			try {
+				AssemblerLexer.tokenize(lines[row], "<input>", row);
+			} catch (RuntimeException ex) {
+				String before = result(join(Arrays.asList(lines).subList(0, row)), 0, null, null);
+				if (before.startsWith("[") || before.contains("Label not defined."))
+					return expected;
+				return before;
+			}
+		}
+		
+		return expected;
+	}
+	
+	/**
+	 * Assembles the source in the given way, and returns the words, or the
+	 * error it fails with.
+	 */
+	private static String result(String source, int way, AssemblySession session,
+			ParallelAssembler parallel) throws IOException {
+		try {
+			switch (way) {
+				case 0:  return Arrays.toString(Assembler.assemble(source, "<input>"));
+				case 1:  return Arrays.toString(Assembler.assemble(new StringReader(source), "<input>"));
+				case 2:  return Arrays.toString(session.assemble());
+				default: return Arrays.toString(parallel.assemble(source, "<input>"));
+			}
+		} catch (RuntimeException ex) {
+			return ex.getClass().getSimpleName() + ": " + ex.getMessage();
+		}
+	}
+	
+	private static String randomLine(Random random) {
+		StringBuilder line = new StringBuilder();
+		if (random.nextInt(8) == 0)
+			return "";
+		if (random.nextInt(3) == 0)
+			line.append(":l").append(random.nextInt(4)).append(' ');
+		if (random.nextInt(6) == 0)
+			return line.toString();
+		
+		String op = OPS[random.nextInt(OPS.length)];
+		line.append(op).append(' ').append(VALUES[random.nextInt(VALUES.length)]);
+		if (!op.equalsIgnoreCase("jsr") || random.nextInt(5) == 0)
+			line.append(", ").append(VALUES[random.nextInt(VALUES.length)]);
+		if (random.nextInt(5) == 0)
+			line.append(" ; comment");
+		return line.toString();
+	}
+	
+	/**
+	 * Generates a valid source of about 380000 characters, with labels
+	 * referred to from all over it, then breaks it near the end unless
+	 * `kind` is 0.
+	 */
+	private static String largeSource(Random random, int kind) {
+		int count = 20000;
+		List<String> lines = new ArrayList<String>();
+		for (int i=0; i<count; i++) {
+			String label = random.nextInt(4) == 0 ? ":x" + i + " " : "";
+			String target = "x" + (random.nextInt(count / 4) * 4);
+			switch (random.nextInt(4)) {
+				case 0:  lines.add(label + "set [0x100+I], " + target); break;
+				case 1:  lines.add(label + "ifn A, [" + target + "]");  break;
+				case 2:  lines.add(label + "jsr " + target);            break;
+				default: lines.add(label + "add b, 1 ; " + i);          break;
+			}
+			if (label.length() == 0 && i % 4 == 0)
+				lines.set(i, ":x" + i + " " + lines.get(i));
+		}
+		
+		int at = count - 1 - random.nextInt(100);
+		switch (kind) {
+			case 1: lines.set(at, "set A, undefined");   break;
+			case 2: lines.set(at, ":x0 set A, 1");       break;
+			case 3: lines.set(at, "set A, [B+C]");       break;
+		}
+		return join(lines);
+	}
+	
+	private static String join(List<String> lines) {
+		StringBuilder source = new StringBuilder();
+		for (int i=0; i<lines.size(); i++) {
+			if (i > 0)
+				source.append('\n');
+			source.append(lines.get(i));
+		}
+		return source.toString();
+	}
+}
@@ -0,0 +1,79 @@
+package dcpu;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import dcpu.assembler.Assembler;
+import dcpu.assembler.AssemblySession;
+
+/**
+ * Checks that reassembling a large source in an AssemblySession after a line
+ * is inserted at the top, which moves every line and label after it, is
+ * still faster than assembling the whole source again.
+ */
+public class AssemblerTimingTest {
+	private static final int LINES = 32768;
+	private static final int RUNS  = 21;
+	
+	// Rounds run before timing, for the JIT compiler to warm up.
+	private static final int WARMUP = 15;
+	
+	public static void main(String[] args) {
+		// Every other line defines a label, and every line refers to one.
+		StringBuilder source = new StringBuilder();
+		for (int i=0; i<LINES; i++) {
+			if (i > 0)
+				source.append('\n');
+			if (i % 2 == 0)
+				source.append(":l").append(i).append(' ');
+			source.append("set A, l").append((i * 7919) % LINES & ~1);
+		}
+		String text = source.toString();
+		
+		AssemblySession session = new AssemblySession("<input>");
+		session.setText(text);
+		session.assemble();
+		
+		long[] sessionTimes = new long[RUNS];
+		long[] fullTimes    = new long[RUNS];
+		short[] inserted = null, full = null;
+		
+		for (int i=-WARMUP; i<RUNS; i++) {
+			session.replaceLines(0, 0, Collections.singletonList("set B, 1"));
+			long start = System.nanoTime();
+			inserted = session.assemble();
+			long sessionTime = System.nanoTime() - start;
+			
+			session.replaceLines(0, 1, Collections.<String>emptyList());
+			session.assemble();
+			
+			start = System.nanoTime();
+			full = Assembler.assemble("set B, 1\n" + text, "<input>");
+			long fullTime = System.nanoTime() - start;
+			
+			if (i >= 0) {
+				sessionTimes[i] = sessionTime;
+				fullTimes[i]    = fullTime;
+			}
+		}
+		
+		long sessionTime = median(sessionTimes);
+		long fullTime    = median(fullTimes);
+		System.out.printf("Timing, session %.2f ms, full %.2f ms%n", sessionTime / 1e6, fullTime / 1e6);
+		
+		if (!Arrays.equals(inserted, full)) {
+			System.out.println("The session assembled something else.");
+			System.exit(1);
+		}
+		if (sessionTime >= fullTime) {
+			System.out.println("The session is slower than assembling the whole source.");
+			System.exit(1);
+		}
+	}
+	
+	private static long median(long[] times) {
+		long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+}
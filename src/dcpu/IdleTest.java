@@ -0,0 +1,66 @@
+package dcpu;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import dcpu.assembler.Assembler;
+import dcpu.emulator.Cpu;
+import dcpu.emulator.RamMirror;
+
+/**
+ * Checks that a CPU running flat out parks its thread once the program is
+ * stuck in an idle loop, even with a RamMirror attached, whose publishing
+ * event keeps scheduling itself, and that a posted write wakes it again.
+ */
+public class IdleTest {
+	public static void main(String[] args) throws IOException, InterruptedException {
+		short[] program = Assembler.assemble(":crash SET PC, crash", "<input>");
+
+		final Cpu cpu = new Cpu(null);
+		cpu.initMem(program);
+
+		Path file = Files.createTempFile("idle", ".mirror");
+		RamMirror mirror = new RamMirror(file);
+		mirror.attach(cpu, 1000);
+
+		Thread runner = new Thread() {
+			@Override
+			public void run() {
+				cpu.start();
+			}
+		};
+		runner.start();
+
+		boolean parked = waitUntilParked(runner);
+		long cycles = cpu.getCycleCount();
+		Thread.sleep(100);
+		boolean stayed = runner.getState() == Thread.State.WAITING && cpu.getCycleCount() == cycles;
+
+		cpu.postWrite(0x1000, (short)1);
+		Thread.sleep(100);
+		boolean woke = cpu.getCycleCount() > cycles;
+
+		cpu.stop();
+		runner.join();
+		mirror.close();
+		Files.delete(file);
+
+		System.out.println("Idle, parked " + parked + ", stayed " + stayed + ", woke " + woke);
+		if (!parked || !stayed || !woke)
+			System.exit(1);
+	}
+
+	/**
+	 * Waits up to two seconds for the thread to park, and returns whether it
+	 * did.
+	 */
+	private static boolean waitUntilParked(Thread thread) throws InterruptedException {
+		for (int i=0; i<200; i++) {
+			if (thread.getState() == Thread.State.WAITING)
+				return true;
+			Thread.sleep(10);
+		}
+		return false;
+	}
+}
@@ -1,103 +1,238 @@
 package dcpu.assembler;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 
 import dcpu.assembler.parser.AssemblerLexer;
-import dcpu.assembler.parser.AssemblerParser;
 import dcpu.assembler.parser.SyntaxException;
 import dcpu.assembler.parser.Token;
+import dcpu.assembler.parser.TokenKind;
+import dcpu.assembler.parser.TokenStream;
 
 
+/**
+ * Assembles DCPU-16 assembly into machine code, in a single pass over the
+ * source.  Words are written to a growable buffer as each line is read, and
+ * references to labels not yet defined are written as 0 and patched once the
+ * label is, so only the output and labels (and not the source or its tokens)
+ * have to be kept in memory.
+ */
 public class Assembler {
+	private static final Opcode[] OPCODES = Opcode.values();
+	
+	// Number of characters read from a Reader at a time.
+	private static final int READ_SIZE = 8192;
+	
+	private final Map<String, Integer> labelMap = new HashMap<String, Integer>();
+	
+	// The words assembled so far.
+	private short[] words = new short[256];
+	private int     size;
+	
+	// Words referring to labels that aren't defined yet, by label.
+	private final Map<String, Fixups> fixups = new HashMap<String, Fixups>();
+	
+	private Assembler() {
+	}
+	
 	public static short[] assemble(String input, String filename) {
-		List<Token>       tokens = AssemblerLexer.lex(input, "<input>");
-		List<List<Token>> lines  = AssemblerParser.splitLines(tokens);
-		
-		return assemble(lines, filename);
+		return assemble(AssemblerLexer.tokenize(input, "<input>"), filename);
 	}
 	
 	public static short[] assemble(List<List<Token>> lines, String filename) {
-		Map<String, Integer> labelMap = new HashMap<String, Integer>();
-		int offsetCtr = 0; // Keeps track of the offset of the current instruction.
+		List<Token> tokens = new ArrayList<Token>();
+		for (List<Token> line : lines) {
+			tokens.addAll(line);
+			tokens.add(new Token("LF", "\n", null));
+		}
 		
-		List<Instruction> instructions = new ArrayList<Instruction>();
+		return assemble(TokenStream.of(tokens), filename);
+	}
+	
+	public static short[] assemble(TokenStream tokens, String filename) {
+		Assembler assembler = new Assembler();
 		
-		// First pass: turn the lines (represented as token arrays) into a label
-		//   map and an array of "instruction" objects.
-		for (List<Token> line : lines) {
-			// Skip empty lines.
-			if (line.isEmpty()) { continue; }
+		for (int end = -1, size = tokens.size(); end < size; ) {
+			int start = end + 1;
+			
+			end = start;
+			while (end < size && tokens.getKind(end) != TokenKind.LF)
+				end++;
 			
-			//-- Handle (eventual) label.
-			Token firstToken = line.get(0);
-			if (firstToken.getType().equals("LABEL")) {
-				String label = firstToken.getValue().substring(1);
-				
-				if (labelMap.containsKey(label)) {
-					throw new SyntaxException(firstToken, "Label already defined.");
+			assembler.assembleLine(tokens, start, end);
+		}
+		
+		return assembler.finish();
+	}
+	
+	/**
+	 * Assembles the source read from the given reader, one line at a time.
+	 * Only the current line and the output are kept in memory.
+	 */
+	public static short[] assemble(Reader reader, String filename) throws IOException {
+		Assembler assembler = new Assembler();
+		
+		StringBuilder line   = new StringBuilder();
+		char[]        buffer = new char[READ_SIZE];
+		int           row    = 0;
+		
+		for (int count; (count = reader.read(buffer)) != -1; ) {
+			int start = 0;
+			
+			for (int i=0; i<count; i++) {
+				if (buffer[i] == '\n') {
+					line.append(buffer, start, i - start);
+					assembler.assembleLine(line.toString(), filename, row++);
+					
+					line.setLength(0);
+					start = i + 1;
 				}
-				
-				labelMap.put(label, offsetCtr);
-				
-				// Remove the label we handled from the line. 
-				line.remove(0);
 			}
 			
-			// If line contained only a label, then continue with next line.
-			if (line.isEmpty()) { continue; }
+			line.append(buffer, start, count - start);
+		}
+		assembler.assembleLine(line.toString(), filename, row);
+		
+		return assembler.finish();
+	}
+	
+	private void assembleLine(String line, String filename, int row) {
+		TokenStream tokens = AssemblerLexer.tokenize(line, filename, row);
+		assembleLine(tokens, 0, tokens.size());
+	}
+	
+	/**
+	 * Assembles the line made up of the tokens from `i` up to `end`.
+	 */
+	private void assembleLine(TokenStream tokens, int i, int end) {
+		// Skip empty lines.
+		if (i == end) { return; }
+		
+		//-- Handle (eventual) label.
+		if (tokens.getKind(i) == TokenKind.LABEL) {
+			String label = tokens.getText(i).substring(1);
 			
-			//-- Handle instruction.
-			Token mnemonicToken = line.get(0);
-			assertSyntax(isMnemonic(mnemonicToken.getValue()), mnemonicToken,
-					"Invalid instruction mnemonic.");
+			if (labelMap.containsKey(label)) {
+				throw new SyntaxException(tokens.getToken(i), "Label already defined.");
+			}
 			
-			line.remove(0);
-			List<List<Token>> params = splitParams(line);
+			labelMap.put(label, size);
 			
-			Opcode opcode = Opcode.valueOf(mnemonicToken.getValue().toUpperCase());
+			// Patch the references made before.
+			Fixups pending = fixups.remove(label);
+			if (pending != null) {
+				for (int j=0; j<pending.count; j++) {
+					words[pending.offsets[j]] = (short)size;
+				}
+			}
 			
-			Instruction instr;
-			if (opcode.isExtended()) {
-				assertSyntax(params.size() == 1, mnemonicToken,
-						"Expected 1 parameter but found " + params.size() + ".");
+			// Move past the label we handled.
+			i++;
+		}
+		
+		// If line contained only a label, then continue with next line.
+		if (i == end) { return; }
+		
+		//-- Handle instruction.
+		write(parseInstruction(tokens, i, end));
+	}
+	
+	/**
+	 * Parses the instruction made up of the tokens from `i` up to `end`, a
+	 * mnemonic and its parameters.
+	 */
+	static Instruction parseInstruction(TokenStream tokens, int i, int end) {
+		int mnemonic = i++;
+		Opcode opcode = findOpcode(tokens, mnemonic);
+		assertSyntax(opcode != null, tokens, mnemonic, "Invalid instruction mnemonic.");
+		
+		int[] params = splitParams(tokens, i, end);
+		int   count  = params.length - 1;
+		
+		Instruction instr;
+		if (opcode.isExtended()) {
+			assertSyntax(count == 1, tokens, mnemonic,
+					"Expected 1 parameter but found " + count + ".");
 			
-				Value b = new Value(params.get(0));
-				instr   = new Instruction(opcode, b);
-				
-			} else {
-				assertSyntax(params.size() == 2, mnemonicToken,
-						"Expected 2 parameters but found " + params.size() + ".");
-				
-				Value a = new Value(params.get(0))
-				    , b = new Value(params.get(1));
-				instr   = new Instruction(opcode, a, b);
-			}
+			Value b = new Value(tokens, params[0], params[1] - 1);
+			instr   = new Instruction(opcode, b);
+			
+		} else {
+			assertSyntax(count == 2, tokens, mnemonic,
+					"Expected 2 parameters but found " + count + ".");
 			
-			instructions.add(instr);
-			offsetCtr += instr.getSize();
+			Value a = new Value(tokens, params[0], params[1] - 1)
+			    , b = new Value(tokens, params[1], params[2] - 1);
+			instr   = new Instruction(opcode, a, b);
 		}
 		
-		// Final pass: turn instructions into words
-		short[] res = new short[offsetCtr];
+		return instr;
+	}
+	
+	/**
+	 * Writes the words of the given instruction.
+	 */
+	private void write(Instruction instr) {
+		write((short)instr.getWord());
+		
+		if (instr.getA() != null && instr.getA().getSize() > 0) {
+			write(instr.getA());
+		}
+		if (instr.getB().getSize() > 0) {
+			write(instr.getB());
+		}
+	}
+	
+	/**
+	 * Writes the "next word" of the given value, or records a fixup for it if
+	 * it refers to a label that isn't defined yet.
+	 */
+	private void write(Value value) {
+		String label = value.getLabel();
 		
-		ListIterator<Instruction> iter = instructions.listIterator();
-		for (int i=0; i<offsetCtr;) {
-			Instruction instr = iter.next();
-			short[]     words = instr.assemble(labelMap);
+		if (label != null && !labelMap.containsKey(label)) {
+			Fixups pending = fixups.get(label);
+			if (pending == null) {
+				pending = new Fixups(value.getLabelToken());
+				fixups.put(label, pending);
+			}
+			pending.add(size);
 			
-			for (short word : words) {
-				res[i++] = word;
+			write((short)0);
+		} else {
+			write(value.getNumber(labelMap));
+		}
+	}
+	
+	private void write(short word) {
+		if (size == words.length)
+			words = Arrays.copyOf(words, size * 2);
+		words[size++] = word;
+	}
+	
+	/**
+	 * Returns the assembled words, once every label referred to is defined.
+	 */
+	private short[] finish() {
+		// Report the first reference to a label that never got defined.
+		Fixups first = null;
+		for (Fixups pending : fixups.values()) {
+			if (first == null || pending.offsets[0] < first.offsets[0]) {
+				first = pending;
 			}
 		}
+		if (first != null) {
+			throw new SyntaxException(first.token, "Label not defined.");
+		}
 		
-		return res;
+		return Arrays.copyOf(words, size);
 	}
-	
+		
 		// GPR
 		// SPR
 		// "[" GPR "]"
@@ -106,53 +241,69 @@ public class Assembler {
 		// value
 	
 	/**
-	 * Splits a list of Tokens on comma tokens (type "COMMA"), into a list of
-	 * lists of tokens representing parameters to an instruction.
+	 * Splits the tokens from `from` up to `to` on comma tokens, into the
+	 * parameters to an instruction.  Returns where each parameter starts,
+	 * followed by `to` + 1 (so parameter n ends at element n + 1, minus 1).
 	 */
-	private static List<List<Token>> splitParams(List<Token> tokens) {
-		List<List<Token>> res = new ArrayList<List<Token>>();
-		
-		List<Token> sublist = new ArrayList<Token>();
-		res.add(sublist);
-		
-		for (Token token : tokens) {
-			if (token.getType().equals("COMMA")) {
-				sublist = new ArrayList<Token>();
-				res.add(sublist);
-				
-			} else {
-				sublist.add(token);
+	private static int[] splitParams(TokenStream tokens, int from, int to) {
+		int count = 1;
+		for (int i=from; i<to; i++) {
+			if (tokens.getKind(i) == TokenKind.COMMA) {
+				count++;
+			}
+		}
+		
+		int[] res = new int[count + 1];
+		res[0] = from;
+		
+		int n = 1;
+		for (int i=from; i<to; i++) {
+			if (tokens.getKind(i) == TokenKind.COMMA) {
+				res[n++] = i + 1;
 			}
 		}
+		res[n] = to + 1;
 		
 		return res;
 	}
 	
 	/**
-	 * Checks whether the given string is a proper mnemonic.
+	 * Returns the opcode that the given token is the mnemonic of, or null if
+	 * it isn't a proper mnemonic.
 	 */
-	private static boolean isMnemonic(String str) {
-		String[] mnemonics = {
-				"JSR", "SET", "ADD", "SUB",
-				"MUL", "DIV", "MOD", "SHL",
-				"SHR", "AND", "BOR", "XOR",
-				"IFE", "IFN", "IFG", "IFB"
-		};
-		
-		String uppercased = str.toUpperCase();
-		
-		for (String mnem : mnemonics) {
-			if (uppercased.equals(mnem)) {
-				return true;
+	private static Opcode findOpcode(TokenStream tokens, int index) {
+		for (Opcode opcode : OPCODES) {
+			if (tokens.equalsIgnoreCase(index, opcode.name())) {
+				return opcode;
 			}
 		}
 		
-		return false;
+		return null;
 	}
 	
-	private static void assertSyntax(boolean cond, Token token, String message) {
+	private static void assertSyntax(boolean cond, TokenStream tokens, int index, String message) {
 		if (!cond) {
-			throw new SyntaxException(token, message);
+			throw new SyntaxException(tokens.getToken(index), message);
+		}
+	}
+	
+	/**
+	 * The words referring to a label that isn't defined yet, and the token of
+	 * the first reference, for reporting it if it never is.
+	 */
+	private static class Fixups {
+		final Token token;
+		int[]       offsets = new int[4];
+		int         count;
+		
+		Fixups(Token token) {
+			this.token = token;
+		}
+		
+		void add(int offset) {
+			if (count == offsets.length)
+				offsets = Arrays.copyOf(offsets, count * 2);
+			offsets[count++] = offset;
 		}
 	}
 }
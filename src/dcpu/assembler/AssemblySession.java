@@ -0,0 +1,487 @@
+package dcpu.assembler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import dcpu.assembler.parser.AssemblerLexer;
+import dcpu.assembler.parser.SyntaxException;
+import dcpu.assembler.parser.TokenKind;
+import dcpu.assembler.parser.TokenStream;
+
+
+/**
+ * Assembles a source that is being edited, such as the contents of the
+ * editor, over and over.  The tokens and instruction of each line are kept
+ * between assemblies, so an edit only has the lines it touched lexed and
+ * parsed again; after that, only the addresses that moved are worked out
+ * again, and only the lines referring to labels that moved are encoded
+ * again.
+ * 
+ * The result and errors are the same as those of Assembler.assemble() on the
+ * whole source, except that lexing errors are reported in line order.
+ */
+public class AssemblySession {
+	private final String filename;
+	
+	private final List<Line> lines = new ArrayList<Line>();
+	
+	// The labels that are defined or referred to, by name.
+	private final Map<String, Label> labels = new HashMap<String, Label>();
+	
+	// What has changed since the last assembly: the lines that have to be
+	// encoded again, the labels that may have moved, and the lines that have
+	// been replaced (from `firstMoved` up to `movedEnd`), after which lines
+	// may have moved too.
+	private final List<Line>  dirty         = new ArrayList<Line>();
+	private final List<Label> changedLabels = new ArrayList<Label>();
+	private int firstMoved = 0;
+	private int movedEnd   = 0;
+	
+	// Lines that failed to lex or parse, labels defined more than once, and
+	// labels referred to but not defined.
+	private final Set<Line>  broken     = new HashSet<Line>();
+	private final Set<Label> duplicates = new HashSet<Label>();
+	private final Set<Label> undefined  = new HashSet<Label>();
+	
+	// The assembled words.
+	private short[] words = new short[256];
+	private int     size;
+	
+	/**
+	 * Creates a session with an empty source, which is one empty line.
+	 */
+	public AssemblySession(String filename) {
+		this.filename = filename;
+		
+		replaceLines(0, 0, Collections.singletonList(""));
+	}
+	
+	/**
+	 * Replaces the whole source.  Only the lines that differ from the current
+	 * source are processed again.
+	 */
+	public void setText(String source) {
+		String[] texts = source.split("\n", -1);
+		
+		// Skip the lines that are the same at the start and at the end.
+		int start = 0;
+		while (start < texts.length && start < lines.size()
+				&& texts[start].equals(lines.get(start).text))
+			start++;
+		
+		int end = 0;
+		while (end < texts.length - start && end < lines.size() - start
+				&& texts[texts.length - 1 - end].equals(lines.get(lines.size() - 1 - end).text))
+			end++;
+		
+		replaceLines(start, lines.size() - end,
+				Arrays.asList(texts).subList(start, texts.length - end));
+	}
+	
+	/**
+	 * Replaces the lines from index `start` up to `end` (counting from 0)
+	 * with the given lines, which don't contain line feeds.
+	 */
+	public void replaceLines(int start, int end, List<String> texts) {
+		List<Line> removed = lines.subList(start, end);
+		for (Line line : removed)
+			unregister(line);
+		removed.clear();
+		
+		List<Line> added = new ArrayList<Line>(texts.size());
+		for (String text : texts) {
+			Line line = new Line(text);
+			parse(line, start + added.size());
+			added.add(line);
+		}
+		lines.addAll(start, added);
+		
+		// Number the new lines, and the ones after them if they moved, before
+		// registering them, which needs the lines in order.
+		int renumberEnd = added.size() == end - start ? start + added.size() : lines.size();
+		for (int i=start; i<renumberEnd; i++)
+			lines.get(i).index = i;
+		
+		for (Line line : added)
+			register(line);
+		
+		firstMoved = Math.min(firstMoved, start);
+		movedEnd   = Math.max(movedEnd >= end ? movedEnd + added.size() - (end - start) : movedEnd,
+		                      start + added.size());
+	}
+	
+	/**
+	 * Assembles the source as it is now.
+	 * 
+	 * @throws SyntaxException if it doesn't assemble.
+	 */
+	public short[] assemble() {
+		int stop = placeLines();
+		resolveLabels();
+		
+		// Encode the lines that changed, or that refer to labels that moved.
+		// Lines removed since they were marked are no longer dirty.
+		for (Line line : dirty) {
+			if (line.dirty) {
+				line.dirty = false;
+				encode(line);
+				writeLine(line);
+			}
+		}
+		dirty.clear();
+		
+		// Write the lines that moved.
+		for (int i=firstMoved; i<stop; i++)
+			writeLine(lines.get(i));
+		firstMoved = lines.size();
+		movedEnd   = 0;
+		
+		checkErrors();
+		
+		return Arrays.copyOf(words, size);
+	}
+	
+	/**
+	 * Lexes and parses a line, which is at the given index.
+	 */
+	private void parse(Line line, int index) {
+		line.row        = index;
+		line.label      = null;
+		line.labelToken = 0;
+		line.tokens     = null;
+		line.instr      = null;
+		line.size       = 0;
+		line.error      = null;
+		
+		try {
+			TokenStream tokens = AssemblerLexer.tokenize(line.text, filename, index);
+			int i = 0, end = tokens.size();
+			
+			line.tokens = tokens;
+			
+			if (i < end && tokens.getKind(i) == TokenKind.LABEL) {
+				line.label      = tokens.getText(i).substring(1);
+				line.labelToken = i++;
+			}
+			
+			if (i < end) {
+				line.instr = Assembler.parseInstruction(tokens, i, end);
+				line.size  = line.instr.getSize();
+			}
+			
+		} catch (RuntimeException ex) {
+			line.error = ex;
+		}
+	}
+	
+	/**
+	 * Adds the label defined by a new line, and the labels it refers to.
+	 */
+	private void register(Line line) {
+		if (line.label != null) {
+			Label label = getLabel(line.label);
+			List<Line> defining = label.definitions;
+			
+			// Keep the defining lines in source order, so the first one is the
+			// definition.
+			int i = defining.size();
+			while (i > 0 && defining.get(i - 1).index > line.index)
+				i--;
+			defining.add(i, line);
+			
+			if (defining.size() > 1)
+				duplicates.add(label);
+			changed(label);
+			line.defined = label;
+		}
+		
+		if (line.instr != null) {
+			line.labelA = refer(line, line.instr.getA());
+			line.labelB = refer(line, line.instr.getB());
+		}
+		
+		if (line.error != null)
+			broken.add(line);
+		
+		markDirty(line);
+	}
+	
+	private Label refer(Line line, Value value) {
+		if (value == null || value.getLabel() == null)
+			return null;
+		
+		Label label = getLabel(value.getLabel());
+		label.references.add(line);
+		changed(label);
+		return label;
+	}
+	
+	/**
+	 * Removes the label defined by a line that is being removed, and the
+	 * labels it refers to.
+	 */
+	private void unregister(Line line) {
+		Label label = line.defined;
+		if (label != null) {
+			label.definitions.remove(line);
+			if (label.definitions.size() < 2)
+				duplicates.remove(label);
+			changed(label);
+		}
+		
+		for (Label referred : new Label[] { line.labelA, line.labelB }) {
+			if (referred != null) {
+				referred.references.remove(line);
+				changed(referred);
+			}
+		}
+		
+		broken.remove(line);
+		line.dirty = false;
+	}
+	
+	private Label getLabel(String name) {
+		Label label = labels.get(name);
+		if (label == null) {
+			label = new Label(name);
+			labels.put(name, label);
+		}
+		return label;
+	}
+	
+	private void markDirty(Line line) {
+		if (!line.dirty) {
+			line.dirty = true;
+			dirty.add(line);
+		}
+	}
+	
+	private void changed(Label label) {
+		if (!label.changed) {
+			label.changed = true;
+			changedLabels.add(label);
+		}
+	}
+	
+	/**
+	 * Works out the addresses of the lines from `firstMoved` on, up to the
+	 * first line past the replaced ones that hasn't moved, after which none
+	 * have.  Returns the index of that line.
+	 */
+	private int placeLines() {
+		int i       = firstMoved;
+		int address = 0;
+		if (i > 0) {
+			Line prev = lines.get(i - 1);
+			address = prev.address + prev.size;
+		}
+		
+		for (; i<lines.size(); i++) {
+			Line line = lines.get(i);
+			
+			if (i >= movedEnd && line.address == address)
+				return i;
+			
+			if (line.address != address && line.defined != null)
+				changed(line.defined);
+			
+			line.address = address;
+			address += line.size;
+		}
+		
+		// Everything from `firstMoved` on moved, so the size may have changed.
+		size = address;
+		if (size > words.length)
+			words = Arrays.copyOf(words, Math.max(size, words.length * 2));
+		
+		return i;
+	}
+	
+	/**
+	 * Updates the addresses of the labels that may have moved (or have been
+	 * referred to anew), and marks the lines referring to those that did move
+	 * as dirty.  Labels no longer defined or referred to are dropped.
+	 */
+	private void resolveLabels() {
+		for (Label label : changedLabels) {
+			label.changed = false;
+			
+			List<Line> defining = label.definitions;
+			int address = defining.isEmpty() ? -1 : defining.get(0).address;
+			if (address != label.address) {
+				label.address = address;
+				for (Line line : label.references)
+					markDirty(line);
+			}
+			
+			if (address < 0 && !label.references.isEmpty())
+				undefined.add(label);
+			else if (!undefined.isEmpty())
+				undefined.remove(label);
+			
+			if (defining.isEmpty() && label.references.isEmpty())
+				labels.remove(label.name);
+		}
+		changedLabels.clear();
+	}
+	
+	/**
+	 * Encodes a line, with the labels as they are now.  Words referring to
+	 * labels that aren't defined are left as 0.
+	 */
+	private void encode(Line line) {
+		Instruction instr = line.instr;
+		if (instr == null)
+			return;
+		
+		// A line never changes once added, so once it's encoded, only the
+		// words referring to labels have to be written again: the word after
+		// the instruction for a, and the last one for b.
+		short[] code = line.code;
+		if (code != null) {
+			if (line.labelA != null)
+				code[1] = getAddress(line.labelA);
+			if (line.labelB != null)
+				code[code.length - 1] = getAddress(line.labelB);
+			return;
+		}
+		
+		code = new short[instr.getSize()];
+		code[0] = (short)instr.getWord();
+		
+		int i = 1;
+		if (instr.getA() != null && instr.getA().getSize() > 0)
+			code[i++] = line.labelA != null ? getAddress(line.labelA) : instr.getA().getNumber(null);
+		if (instr.getB().getSize() > 0)
+			code[i++] = line.labelB != null ? getAddress(line.labelB) : instr.getB().getNumber(null);
+		
+		line.code = code;
+	}
+	
+	private static short getAddress(Label label) {
+		return (short)Math.max(label.address, 0);
+	}
+	
+	private void writeLine(Line line) {
+		if (line.code != null)
+			System.arraycopy(line.code, 0, words, line.address, line.code.length);
+	}
+	
+	/**
+	 * Throws the error that Assembler.assemble() would, if any: the first line
+	 * that doesn't parse or defines a label again, or failing that, the first
+	 * reference to a label that isn't defined.
+	 */
+	private void checkErrors() {
+		Line first = null;
+		
+		for (Line line : broken) {
+			if (first == null || line.index < first.index)
+				first = line;
+		}
+		for (Label label : duplicates) {
+			// The second line defining the label is the first to do it again.
+			Line line = label.definitions.get(1);
+			if (first == null || line.index < first.index)
+				first = line;
+		}
+		
+		if (first != null) {
+			// The label is checked before the instruction is parsed.
+			Line line = refresh(first);
+			if (line.defined != null && line.defined.definitions.get(0) != line) {
+				throw new SyntaxException(line.tokens.getToken(line.labelToken),
+						"Label already defined.");
+			}
+			
+			throw line.error;
+		}
+		
+		for (Label label : undefined) {
+			for (Line line : label.references) {
+				if (first == null || line.index < first.index)
+					first = line;
+			}
+		}
+		
+		if (first != null) {
+			Line line = refresh(first);
+			if (line.labelA != null && line.labelA.address < 0)
+				throw new SyntaxException(line.instr.getA().getLabelToken(), "Label not defined.");
+			if (line.labelB != null && line.labelB.address < 0)
+				throw new SyntaxException(line.instr.getB().getLabelToken(), "Label not defined.");
+		}
+	}
+	
+	/**
+	 * Lexes and parses a line again if it has moved to another index since it
+	 * was last, so that its tokens (and errors) have the right line numbers.
+	 */
+	private Line refresh(Line line) {
+		if (line.row != line.index)
+			parse(line, line.index);
+		return line;
+	}
+	
+	/**
+	 * A line of the source, with its tokens and instruction, if any, and its
+	 * place in the output.
+	 */
+	private static class Line {
+		final String text;
+		
+		// Index of the line in the source, and its index when it was parsed,
+		// which its tokens count from.
+		int index;
+		int row;
+		
+		// The label defined by the line (and the index of its token), the
+		// line's tokens, instruction and its size, or the error it didn't
+		// parse with; and the labels it defines and refers to, which are
+		// registered when the line is added and kept when it's parsed again.
+		String           label;
+		int              labelToken;
+		TokenStream      tokens;
+		Instruction      instr;
+		int              size;
+		RuntimeException error;
+		Label            defined, labelA, labelB;
+		
+		// Address and words of the line, or -1 and null if not worked out yet,
+		// and whether it's in `dirty`.
+		int     address = -1;
+		short[] code;
+		boolean dirty;
+		
+		Line(String text) {
+			this.text = text;
+		}
+	}
+	
+	/**
+	 * A label, with the lines that define it and refer to it.
+	 */
+	private static class Label {
+		final String name;
+		
+		// The lines defining the label, in source order (more than one if it's
+		// defined again), and the lines referring to it.
+		final List<Line> definitions = new ArrayList<Line>(1);
+		final Set<Line>  references  = new HashSet<Line>();
+		
+		// Address of the label as of the last assembly, or -1 if it isn't
+		// defined, and whether it's in `changedLabels`.
+		int     address = -1;
+		boolean changed;
+		
+		Label(String name) {
+			this.name = name;
+		}
+	}
+}
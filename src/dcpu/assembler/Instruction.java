@@ -57,35 +57,48 @@ public class Instruction {
 	 * Assembles this instruction into an array of 1-3 shorts.
 	 */
 	public short[] assemble(Map<String, Integer> labelMap) {
+		short[] res = new short[this.getSize()];
+		res[0] = (short)this.getWord();
+		
+		int i = 1;
+		if (this.a != null && this.a.getSize() > 0) {
+			res[i++] = this.a.getNumber(labelMap); 
+		}
+		if (this.b.getSize() > 0) {
+			res[i++] = this.b.getNumber(labelMap);
+		}
+		
+		return res;
+	}
+	
+	/**
+	 * Returns the first word of this instruction, which holds the opcode and
+	 * the raw values of its parameters.
+	 */
+	int getWord() {
 		int op = 0;
 		
 		if (this.opcode.isExtended()) {
 			op |= (this.opcode.getCode() & 0x3f) <<  4;
 			op |= (this.b.getRawValue()  & 0x3f) << 10;
 			
-			if (this.b.getSize() > 0) {
-				return new short[] { (short)op, this.b.getNumber(labelMap) };
-			} else {
-				return new short[] { (short)op };
-			}
-			
 		} else {
 			op |= (this.opcode.getCode() & 0x0f);
 			op |= (this.a.getRawValue()  & 0x3f) <<  4;
 			op |= (this.b.getRawValue()  & 0x3f) << 10;
-			
-			short[] res = new short[this.getSize()];
-			res[0] = (short)op;
-			
-			int i = 1;
-			if (this.a.getSize() > 0) {
-				res[i++] = this.a.getNumber(labelMap); 
-			}
-			if (this.b.getSize() > 0) {
-				res[i++] = this.b.getNumber(labelMap);
-			}
-			
-			return res;
 		}
+		
+		return op;
+	}
+	
+	/**
+	 * Returns the first parameter, or null for extended instructions.
+	 */
+	Value getA() {
+		return a;
+	}
+	
+	Value getB() {
+		return b;
 	}
 }
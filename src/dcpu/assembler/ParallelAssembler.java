@@ -0,0 +1,315 @@
+package dcpu.assembler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import dcpu.assembler.parser.AssemblerLexer;
+import dcpu.assembler.parser.SyntaxException;
+import dcpu.assembler.parser.Token;
+import dcpu.assembler.parser.TokenKind;
+import dcpu.assembler.parser.TokenStream;
+
+
+/**
+ * Assembles large sources in parallel, over a work-stealing thread pool.
+ * 
+ * The source is split into chunks of whole lines, which are lexed and parsed
+ * in parallel, each into its instructions, its size and the offsets of the
+ * labels it defines.  A prefix sum over the sizes then gives each chunk its
+ * address, and with it the address of every label, after which the chunks are
+ * encoded in parallel, straight into the output.
+ * 
+ * The output, and the error thrown for a source that doesn't assemble, are
+ * the same as those of Assembler.assemble().
+ */
+public class ParallelAssembler {
+	/** Number of characters (or lines, for lists of tokens) per chunk. */
+	private static final int CHUNK_CHARS = 1 << 16;
+	private static final int CHUNK_LINES = 1 << 11;
+	
+	private static enum Phase { COUNT, PARSE, ENCODE }
+	
+	private final ForkJoinPool pool;
+	
+	/**
+	 * Creates an assembler that uses one thread per available processor.
+	 */
+	public ParallelAssembler() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Creates an assembler that uses the given number of threads.
+	 */
+	public ParallelAssembler(int parallelism) {
+		this.pool = new ForkJoinPool(parallelism);
+	}
+	
+	/**
+	 * Stops the assembler's threads.  The assembler can't be used afterwards.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+	
+	public short[] assemble(String input, String filename) {
+		// Split the input after the first line feed past every CHUNK_CHARS
+		// characters.  Like with Assembler.assemble(String, String), the
+		// tokens say they're from "<input>".
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		int start = 0;
+		do {
+			int end = start + CHUNK_CHARS;
+			if (end >= input.length()) {
+				end = input.length();
+			} else {
+				end = input.indexOf('\n', end) + 1;
+				if (end == 0)
+					end = input.length();
+			}
+			
+			chunks.add(new Chunk(input.substring(start, end), "<input>"));
+			start = end;
+		} while (start < input.length());
+		
+		Chunk[] array = chunks.toArray(new Chunk[chunks.size()]);
+		
+		// Number the lines, so that the tokens of each chunk count them from
+		// the start of the input.
+		pool.invoke(new ChunkTask(Phase.COUNT, array, 0, array.length, null, null));
+		for (int i=1; i<array.length; i++)
+			array[i].firstLine = array[i - 1].firstLine + array[i - 1].lineCount;
+		
+		return assemble(array);
+	}
+	
+	public short[] assemble(List<List<Token>> lines, String filename) {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		for (int i=0; i<lines.size(); i+=CHUNK_LINES)
+			chunks.add(new Chunk(lines.subList(i, Math.min(lines.size(), i + CHUNK_LINES))));
+		
+		return assemble(chunks.toArray(new Chunk[chunks.size()]));
+	}
+	
+	private short[] assemble(Chunk[] chunks) {
+		pool.invoke(new ChunkTask(Phase.PARSE, chunks, 0, chunks.length, null, null));
+		
+		// The whole source is lexed before any of it is assembled, so lexing
+		// errors come first.
+		for (Chunk chunk : chunks) {
+			if (chunk.lexError != null)
+				throw chunk.lexError;
+		}
+		
+		// Give each chunk its address, and each label its address, and report
+		// the errors in the order they would be found in one pass.
+		Map<String, Integer> labelMap = new HashMap<String, Integer>();
+		int address = 0;
+		
+		for (Chunk chunk : chunks) {
+			chunk.address = address;
+			
+			for (int i=0; i<chunk.labelCount; i++) {
+				String label = chunk.labels.get(i);
+				if (labelMap.containsKey(label)) {
+					throw new SyntaxException(chunk.tokens.getToken(chunk.labelTokens[i]),
+							"Label already defined.");
+				}
+				
+				labelMap.put(label, address + chunk.labelOffsets[i]);
+			}
+			
+			if (chunk.error != null)
+				throw chunk.error;
+			
+			address += chunk.size;
+		}
+		
+		short[] words = new short[address];
+		pool.invoke(new ChunkTask(Phase.ENCODE, chunks, 0, chunks.length, words, labelMap));
+		
+		for (Chunk chunk : chunks) {
+			if (chunk.undefined != null)
+				throw new SyntaxException(chunk.undefined, "Label not defined.");
+		}
+		
+		return words;
+	}
+	
+	/**
+	 * Runs a phase on a range of chunks, splitting it in halves until it's a
+	 * single chunk, so that idle threads can steal the other halves.
+	 */
+	private static class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final Phase   phase;
+		private final Chunk[] chunks;
+		private final int     from;
+		private final int     to;
+		
+		// Output and labels, for encoding.
+		private final short[]              words;
+		private final Map<String, Integer> labelMap;
+		
+		ChunkTask(Phase phase, Chunk[] chunks, int from, int to,
+				short[] words, Map<String, Integer> labelMap) {
+			this.phase    = phase;
+			this.chunks   = chunks;
+			this.from     = from;
+			this.to       = to;
+			this.words    = words;
+			this.labelMap = labelMap;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= 1) {
+				for (int i=from; i<to; i++) {
+					switch (phase) {
+						case COUNT:  chunks[i].countLines();            break;
+						case PARSE:  chunks[i].parse();                 break;
+						case ENCODE: chunks[i].encode(words, labelMap); break;
+					}
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ChunkTask(phase, chunks, from, mid, words, labelMap),
+				          new ChunkTask(phase, chunks, mid, to, words, labelMap));
+			}
+		}
+	}
+	
+	/**
+	 * A run of whole lines of the source, and what assembling them on their
+	 * own gives.  Errors are kept rather than thrown, to be reported in order
+	 * once all chunks are done.
+	 */
+	private static class Chunk {
+		// The chunk's source and the index of its first line, or its tokens.
+		private final String            source;
+		private final String            filename;
+		private final List<List<Token>> lines;
+		private int firstLine, lineCount;
+		
+		private TokenStream             tokens;
+		private final List<Instruction> instructions = new ArrayList<Instruction>();
+		private int                     size;
+		
+		// Labels defined in the chunk, the indices of their tokens, and their
+		// offsets from the start of the chunk.
+		private final List<String> labels       = new ArrayList<String>();
+		private int[]              labelTokens  = new int[16];
+		private int[]              labelOffsets = new int[16];
+		private int                labelCount;
+		
+		// The error the chunk failed to lex or parse with, if any; labels are
+		// only kept up to (and including) the line that failed to parse.
+		private RuntimeException lexError, error;
+		
+		// Address of the chunk, and the first reference in it to a label that
+		// isn't defined anywhere.
+		private int   address;
+		private Token undefined;
+		
+		Chunk(String source, String filename) {
+			this.source   = source;
+			this.filename = filename;
+			this.lines    = null;
+		}
+		
+		Chunk(List<List<Token>> lines) {
+			this.source   = null;
+			this.filename = null;
+			this.lines    = lines;
+		}
+		
+		void countLines() {
+			for (int i=source.indexOf('\n'); i>=0; i=source.indexOf('\n', i + 1))
+				lineCount++;
+		}
+		
+		void parse() {
+			if (source != null) {
+				try {
+					tokens = AssemblerLexer.tokenize(source, filename, firstLine);
+				} catch (RuntimeException ex) {
+					lexError = ex;
+					return;
+				}
+			} else {
+				List<Token> list = new ArrayList<Token>();
+				for (List<Token> line : lines) {
+					list.addAll(line);
+					list.add(new Token("LF", "\n", null));
+				}
+				tokens = TokenStream.of(list);
+			}
+			
+			for (int end = -1, count = tokens.size(); end < count; ) {
+				int i = end + 1;
+				
+				end = i;
+				while (end < count && tokens.getKind(end) != TokenKind.LF)
+					end++;
+				
+				if (i < end && tokens.getKind(i) == TokenKind.LABEL) {
+					addLabel(tokens.getText(i).substring(1), i);
+					i++;
+				}
+				
+				if (i < end) {
+					try {
+						Instruction instr = Assembler.parseInstruction(tokens, i, end);
+						instructions.add(instr);
+						size += instr.getSize();
+					} catch (RuntimeException ex) {
+						error = ex;
+						return;
+					}
+				}
+			}
+		}
+		
+		private void addLabel(String label, int token) {
+			if (labelCount == labelTokens.length) {
+				labelTokens  = Arrays.copyOf(labelTokens, labelCount * 2);
+				labelOffsets = Arrays.copyOf(labelOffsets, labelCount * 2);
+			}
+			
+			labels.add(label);
+			labelTokens[labelCount]  = token;
+			labelOffsets[labelCount] = size;
+			labelCount++;
+		}
+		
+		void encode(short[] words, Map<String, Integer> labelMap) {
+			int offset = address;
+			
+			for (Instruction instr : instructions) {
+				words[offset++] = (short)instr.getWord();
+				
+				if (instr.getA() != null && instr.getA().getSize() > 0)
+					words[offset++] = encode(instr.getA(), labelMap);
+				if (instr.getB().getSize() > 0)
+					words[offset++] = encode(instr.getB(), labelMap);
+			}
+		}
+		
+		private short encode(Value value, Map<String, Integer> labelMap) {
+			String label = value.getLabel();
+			if (label != null && !labelMap.containsKey(label)) {
+				if (undefined == null)
+					undefined = value.getLabelToken();
+				return 0;
+			}
+			
+			return value.getNumber(labelMap);
+		}
+	}
+}
@@ -3,9 +3,10 @@ package dcpu.assembler;
 import java.util.List;
 import java.util.Map;
 
-import dcpu.assembler.parser.NumberToken;
 import dcpu.assembler.parser.SyntaxException;
 import dcpu.assembler.parser.Token;
+import dcpu.assembler.parser.TokenKind;
+import dcpu.assembler.parser.TokenStream;
 
 
 /**
@@ -23,8 +24,12 @@ public class Value {
 	}
 	
 	private static enum GPR { A, B, C, X, Y, Z, I, J }
+	private static final GPR[] GPRS = GPR.values();
 	
-	private List<Token> tokens;
+	private static final String GPR_NAMES = "ABCXYZIJ";
+	private static final String[] SPR_NAMES = { "POP", "PEEK", "PUSH", "SP", "PC", "O" };
+	
+	private TokenStream tokens;
 	private ValueType type;
 	private GPR       register;
 	private int       value;
@@ -33,111 +38,119 @@ public class Value {
 	private int       labelTokenId;
 	
 	public Value(List<Token> tokens) {
+		this(TokenStream.of(tokens), 0, tokens.size());
+	}
+	
+	/**
+	 * Parses the tokens from `from` up to `to` in the given stream into a
+	 * value.
+	 */
+	public Value(TokenStream tokens, int from, int to) {
 		this.tokens = tokens;
-		if (tokens.size() == 1) {
-			Token token = tokens.get(0);
+		if (to - from == 1) {
+			int token = from;
 			
-			if (token.getType().equals("NAME")) {
-				String registerStr = token.getValue().toUpperCase();
+			if (tokens.getKind(token) == TokenKind.NAME) {
+				int gpr = generalPurposeRegister(tokens, token)
+				  , spr = specialPurposeRegister(tokens, token);
 				
-				if (isGeneralPurposeRegister(registerStr)) {
+				if (gpr >= 0) {
 					this.type     = ValueType.GPR;
-					this.register = GPR.valueOf(registerStr);
+					this.register = GPRS[gpr];
 					
-				} else if (isSpecialPurposeRegister(registerStr)) {
+				} else if (spr >= 0) {
 					this.type  = ValueType.SPR;
-					this.value = SPRToInt(registerStr);
+					this.value = spr;
 					
 				} else {
 					this.type = ValueType.CONST;
-					this.label = token.getValue();
-					this.labelTokenId = 0;
+					this.label = tokens.getText(token);
+					this.labelTokenId = token;
 				}
 				
-			} else if (token.getType().equals("NUMBER")) {
+			} else if (tokens.getKind(token) == TokenKind.NUMBER) {
 				type  = ValueType.CONST;
-				value = ((NumberToken)token).getIntegerValue();
+				value = tokens.getNumber(token);
 				
 			} else {
-				throw new SyntaxException(token,
+				throw new SyntaxException(tokens.getToken(token),
 						"Unexpected token while trying to parse value.");
 			}
 			
-		} else if (tokens.size() == 3) {
+		} else if (to - from == 3) {
 			// Three tokens means it has to be of the form: "[" something "]"
-			if (!tokens.get(0).getValue().equals("[")
-					|| !tokens.get(2).getValue().equals("]")) {
-				throw new SyntaxException(tokens.get(1),
+			if (!tokens.is(from, '[') || !tokens.is(from + 2, ']')) {
+				throw new SyntaxException(tokens.getToken(from + 1),
 						"Unexpected surrounding tokens.");
 			}
 			
-			Token token = tokens.get(1);
+			int token = from + 1;
 			
-			if (token.getType().equals("NAME")) {
-				String registerStr = token.getValue().toUpperCase();
+			if (tokens.getKind(token) == TokenKind.NAME) {
+				int gpr = generalPurposeRegister(tokens, token)
+				  , spr = specialPurposeRegister(tokens, token);
 				
-				if (isGeneralPurposeRegister(registerStr)) {
+				if (gpr >= 0) {
 					this.type     = ValueType.GPR_DEREF;
-					this.register = GPR.valueOf(registerStr);
+					this.register = GPRS[gpr];
 					
-				} else if (isSpecialPurposeRegister(registerStr)) {
+				} else if (spr >= 0) {
 					this.type  = ValueType.SPR;
-					this.value = SPRToInt(registerStr);
+					this.value = spr;
 					
 				} else {
 					this.type = ValueType.CONST_DEREF;
-					this.label = token.getValue();
-					this.labelTokenId = 1;
+					this.label = tokens.getText(token);
+					this.labelTokenId = token;
 				}
 				
-			} else if (token.getType().equals("NUMBER")) {
+			} else if (tokens.getKind(token) == TokenKind.NUMBER) {
 				type  = ValueType.CONST_DEREF;
-				value = ((NumberToken)token).getIntegerValue();
+				value = tokens.getNumber(token);
 				
 			} else {
-				throw new SyntaxException(token,
+				throw new SyntaxException(tokens.getToken(token),
 						"Unexpected token while trying to parse value.");
 			}
 			
-		} else if (tokens.size() == 5) {
+		} else if (to - from == 5) {
 			// [A+x] and [x+A] for any GPR A and any constant x.
-			if (!tokens.get(0).getValue().equals("[")
-					|| !tokens.get(4).getValue().equals("]")
-					|| !tokens.get(2).getValue().equals("+")) {
-				throw new SyntaxException(tokens.get(1),
+			if (!tokens.is(from, '[') || !tokens.is(from + 4, ']')
+					|| !tokens.is(from + 2, '+')) {
+				throw new SyntaxException(tokens.getToken(from + 1),
 						"Unexpected surrounding tokens.");
 			}
 			
-			Token t1 = tokens.get(1)
-			    , t2 = tokens.get(3);
+			int t1 = from + 1
+			  , t2 = from + 3;
 			
-			Token regToken, valueToken;
+			int regToken, valueToken;
 			
-			if (t1.getType().equals("NAME") && t2.getType().equals("NAME")) {
+			if (tokens.getKind(t1) == TokenKind.NAME && tokens.getKind(t2) == TokenKind.NAME) {
 				// [Label + A] or [A + Label]
-				boolean t1IsGPR = isGeneralPurposeRegister(t1.getValue());
-				boolean t2IsGPR = isGeneralPurposeRegister(t2.getValue());
+				boolean t1IsGPR = generalPurposeRegister(tokens, t1) >= 0;
+				boolean t2IsGPR = generalPurposeRegister(tokens, t2) >= 0;
 				
 				if (t1IsGPR == t2IsGPR)
-					throw new SyntaxException(t1, "Unexpected token.");
+					throw new SyntaxException(tokens.getToken(t1), "Unexpected token.");
 				
 				if (t1IsGPR) {
 					// Swap
-					t1 = tokens.get(3);
-					t2 = tokens.get(1);
+					t1 = from + 3;
+					t2 = from + 1;
 				}
 				
 				this.type = ValueType.GPR_RELATIVE_DEREF;
-				this.register = GPR.valueOf(t2.getValue().toUpperCase());
-				this.label = t1.getValue();
-				this.labelTokenId = 3;
+				this.register = GPRS[generalPurposeRegister(tokens, t2)];
+				this.label = tokens.getText(t1);
+				this.labelTokenId = t1;
 				
 			} else {
-				if (t1.getType().equals("NAME")) {
+				if (tokens.getKind(t1) == TokenKind.NAME) {
 					// [A + x]
-					if (!isGeneralPurposeRegister(t1.getValue())
-							|| !t2.getType().equals("NUMBER")) {
-						throw new SyntaxException(t1, "Unexpected token.");
+					if (generalPurposeRegister(tokens, t1) < 0
+							|| tokens.getKind(t2) != TokenKind.NUMBER) {
+						throw new SyntaxException(tokens.getToken(t1), "Unexpected token.");
 					}
 					
 					regToken   = t1;
@@ -145,10 +158,10 @@ public class Value {
 					
 				} else {
 					// [x + A]
-					if (!t2.getType().equals("NAME")
-							|| !isGeneralPurposeRegister(t2.getValue())
-							|| !t1.getType().equals("NUMBER")) {
-						throw new SyntaxException(t1, "Unexpected token.");
+					if (tokens.getKind(t2) != TokenKind.NAME
+							|| generalPurposeRegister(tokens, t2) < 0
+							|| tokens.getKind(t1) != TokenKind.NUMBER) {
+						throw new SyntaxException(tokens.getToken(t1), "Unexpected token.");
 					}
 					
 					regToken   = t2;
@@ -156,15 +169,15 @@ public class Value {
 				}
 				
 				this.type     = ValueType.GPR_RELATIVE_DEREF;
-				this.register = GPR.valueOf(regToken.getValue().toUpperCase());
-				this.value    = ((NumberToken)valueToken).getIntegerValue();
+				this.register = GPRS[generalPurposeRegister(tokens, regToken)];
+				this.value    = tokens.getNumber(valueToken);
 			}
 			
 		} else {
 			String msg = "Couldn't parse tokens into a value."; 
 			
-			if (tokens.size() > 0) {
-				throw new SyntaxException(tokens.get(0), msg);
+			if (to - from > 0) {
+				throw new SyntaxException(tokens.getToken(from), msg);
 			} else {
 				throw new SyntaxException(msg);
 			}
@@ -196,12 +209,26 @@ public class Value {
 			if (address != null){
 				return (short)(int)address;
 			} else {
-				throw new SyntaxException(tokens.get(labelTokenId),
+				throw new SyntaxException(tokens.getToken(labelTokenId),
 						"Label not defined.");
 			}
 		}
     }
 	
+	/**
+	 * Returns the label that this Value refers to, or null if it doesn't.
+	 */
+	String getLabel() {
+		return label;
+	}
+	
+	/**
+	 * Returns the token naming the label that this Value refers to.
+	 */
+	Token getLabelToken() {
+		return tokens.getToken(labelTokenId);
+	}
+	
 	/**
 	 * The "raw" value of the instruction, which is what would go in "a" or "b".
 	 * That is, 0x1f for "next word" as opposed to the actual value that the
@@ -221,41 +248,28 @@ public class Value {
 				throw new IllegalStateException();
 		}
 	}
-
-	private static int SPRToInt(String str) {
-		if (str.equals("POP")) {
-			return 0x18;
-		} else if (str.equals("PEEK")) {
-			return 0x19;
-		} else if (str.equals("PUSH")) {
-			return 0x1a;
-		} else if (str.equals("SP")) {
-			return 0x1b;
-		} else if (str.equals("PC")) {
-			return 0x1c;
-		} else if (str.equals("O")) {
-			return 0x1d;
-		} else {
-			throw new IllegalArgumentException(
-					"No such special-purpose register: " + str);
-		}
-	}
-
+	
 	/**
-	 * Returns whether the given string represents a general-purpose register.
+	 * Returns the index of the general-purpose register (in GPR) that the
+	 * given token names, or -1 if it doesn't name one.
 	 */
-	private static boolean isGeneralPurposeRegister(String str) {
-		// Note: str can't contain comma anyway, so we shouldn't get any false
-		// positives from the below.
-		return ("A,B,C,X,Y,Z,I,J".contains(str));
+	private static int generalPurposeRegister(TokenStream tokens, int token) {
+		if (tokens.getLength(token) != 1)
+			return -1;
+		
+		return GPR_NAMES.indexOf(Character.toUpperCase(tokens.charAt(token, 0)));
 	}
 	
 	/**
-	 * Returns whether the given string represents a special-purpose register.
+	 * Returns the operand code of the special-purpose register that the given
+	 * token names, or -1 if it doesn't name one.
 	 */
-	private static boolean isSpecialPurposeRegister(String str) {
-		// See above note for `isGeneralPurposeRegister`.
+	private static int specialPurposeRegister(TokenStream tokens, int token) {
+		for (int i=0; i<SPR_NAMES.length; i++) {
+			if (tokens.equalsIgnoreCase(token, SPR_NAMES[i]))
+				return 0x18 + i;
+		}
 		
-		return (",POP,PEEK,PUSH,SP,PC,O,".contains("," + str + ","));
+		return -1;
 	}
-}
\ No newline at end of file
+}
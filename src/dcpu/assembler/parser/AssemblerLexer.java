@@ -1,23 +1,46 @@
 package dcpu.assembler.parser;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 
 
 /**
  * Lexer for the DCPU-16 assembly language.
  * 
+ * A single hand-written pass over the input, which looks characters up in a
+ * table of character classes.  Tokens are stored as offsets into the input
+ * in a TokenStream, so lexing allocates next to nothing.
+ * 
  * @author Jonas Höglund
  * @verison 2012-04-10
  */
 public class AssemblerLexer {
-	private static final Pattern
-			PATTERN_NOT_ALNUM = Pattern.compile("[^\\w\\d]"),
-			PATTERN_NOT_HEX   = Pattern.compile("[^\\da-fA-F]"),
-			PATTERN_NOT_DIGIT = Pattern.compile("\\D");
+	// Character classes, as bits in CLASSES (for ASCII characters only; all
+	// others are unknown).  WORD is what \w matches: letters, digits and '_'.
+	private static final int
+			IGNOREABLE = 0x01,
+			LETTER     = 0x02,
+			DIGIT      = 0x04,
+			HEX        = 0x08,
+			WORD       = 0x10;
+	
+	private static final byte[] CLASSES = new byte[128];
+	
+	static {
+		CLASSES['\t'] = CLASSES['\f'] = CLASSES[' '] = CLASSES['\r'] = IGNOREABLE;
+		CLASSES['_']  = WORD;
+		
+		for (char chr='a'; chr<='z'; chr++) {
+			CLASSES[chr]      = LETTER | WORD;
+			CLASSES[chr - 32] = LETTER | WORD;
+		}
+		for (char chr='0'; chr<='9'; chr++)
+			CLASSES[chr] = DIGIT | HEX | WORD;
+		for (char chr='a'; chr<='f'; chr++) {
+			CLASSES[chr]      |= HEX;
+			CLASSES[chr - 32] |= HEX;
+		}
+	}
 	
 	/**
 	 * Splits an input string into a list of tokens. The given filename is used
@@ -30,89 +53,100 @@ public class AssemblerLexer {
 	 * @return a list of tokens.
 	 */
 	public static List<Token> lex(String input, String filename) {
-		List<Token> res = new ArrayList<Token>();
-		
-		int row   = 1
-		  , rowI0 = 0;
+		return tokenize(input, filename).toList();
+	}
+	
+	/**
+	 * Splits an input string into a stream of tokens. The given filename is
+	 * used for debugging and error reporting.
+	 */
+	public static TokenStream tokenize(String input, String filename) {
+		return tokenize(input, filename, 0);
+	}
+	
+	/**
+	 * Splits part of a larger source into a stream of tokens, where the input
+	 * starts at the line with the given index (counting from 0) in the
+	 * source.
+	 */
+	public static TokenStream tokenize(String input, String filename, int firstLine) {
+		// Sources average three or more characters per token (counting
+		// whitespace), so the stream rarely has to grow.
+		TokenStream res = new TokenStream(input, filename, firstLine, input.length() / 3);
 		
-		String line = AssemblerLexer.upto('\n', input, 0);
-
 		// Iterate over the input, adjusting the input pointer as necessary.
 		for (int i = 0, length = input.length(); i < length; ) {
 			char chr = input.charAt(i);
+			int  cls = chr < 128 ? CLASSES[chr] : 0;
+			
+			TokenKind kind;
+			int       end;
 			
-			String name, value;
-			Token token;
-
 			// Ignore all non-LF whitespace (for all purposes other than to
 			// separate tokens).
-			if (AssemblerLexer.isIgnoreable(chr)) {
+			if ((cls & IGNOREABLE) != 0) {
 				i++;
 				continue;
-
+			
 			// Line feed tokens
 			} else if (chr == '\n') {
-				// Emit a newline token.
-				name  = "LF";
-				value = "\n";
+				kind = TokenKind.LF;
+				end  = i + 1;
 				
-				// Update the "current line" metadata (used for error reporting
-				// in emitted tokens).
-				row++;
-				rowI0 = i;
-				line  = upto('\n', input, i + 1);
+				// Start the next line (used for error reporting in emitted
+				// tokens), which the line feed is part of.
+				res.newLine(i + 1);
 			
 			// Comma separator tokens
 			} else if (chr == ',') {
-				name  = "COMMA";
-				value = ",";
-				
+				kind = TokenKind.COMMA;
+				end  = i + 1;
+			
 			// Various types of parens.
-			} else if (isParenLike(chr)) {
-				name  = "PAREN";
-				value = Character.toString(chr);
-
+			} else if (chr == '[' || chr == ']') {
+				kind = TokenKind.PAREN;
+				end  = i + 1;
+			
 			// Operators
-			} else if (isOperator(chr)) {
-				name  = "OPERATOR";
-				value = Character.toString(chr);
-
+			} else if (chr == '+' || chr == '-' || chr == '*' || chr == '/') {
+				kind = TokenKind.OPERATOR;
+				end  = i + 1;
+			
 			// Label declarations
 			} else if (chr == ':') {
-				String content = upto(PATTERN_NOT_ALNUM, input, i + 1);
-				
-				name  = "LABEL";
-				value = ":" + content;
-				
+				kind = TokenKind.LABEL;
+				end  = skip(WORD, input, i + 1);
+			
 			// Names & registers
-			} else if (Character.isLetter(chr)) {
-				String content = upto(PATTERN_NOT_ALNUM, input, i);
-				
-				name  = "NAME";
-				value = content;
+			} else if ((cls & LETTER) != 0) {
+				kind = TokenKind.NAME;
+				end  = skip(WORD, input, i);
 			
 			// Number literals
-			} else if (Character.isDigit(chr)) {
-				if (chr == '0' && input.length() > i + 2
-						       && input.charAt(i + 1) == 'x') {
+			} else if ((cls & DIGIT) != 0) {
+				kind = TokenKind.NUMBER;
+				
+				boolean valid;
+				if (chr == '0' && length > i + 1 && input.charAt(i + 1) == 'x') {
 					// Hex literal: 0x1234
-					String content = upto(PATTERN_NOT_HEX, input, i + 2);
-					
-					name  = "NUMBER";
-					value = "0x" + content;
-					
+					end   = skip(HEX, input, i + 2);
+					valid = end > i + 2 && end - i <= 2 + 7;
 				} else {
 					// Decimal literal
-					String content = upto(PATTERN_NOT_DIGIT, input, i);
-					
-					name  = "NUMBER";
-					value = content;
-					
+					end   = skip(DIGIT, input, i);
+					valid = end - i <= 9;
 				}
+				
+				// Numbers are parsed when used, but ones that may not parse
+				// (no digits, or too many) are reported right away.
+				if (!valid)
+					NumberToken.parseNumber(input, i, end);
 			
 			// Comments
 			} else if (chr == ';') {
-				i += AssemblerLexer.upto('\n', input, i).length();
+				i = input.indexOf('\n', i);
+				if (i == -1)
+					break;
 				continue;
 			
 			// Unknown character
@@ -120,64 +154,30 @@ public class AssemblerLexer {
 				throw new SyntaxException("Unknown character: '" + chr + "'");
 			}
 			
-			int column = i - rowI0;
-			TokenPosition pos = new TokenPosition(filename, row, column, line);
-			
-			if (name.equals("NUMBER")) {
-				res.add(new NumberToken(name, value, pos));
-			} else {
-				res.add(new Token(name, value, pos));
-			}
+			res.add(kind, i, end);
 			
 			// Skip over the characters that the token consumed.
-			i += value.length();
+			i = end;
 		}
 		
 		return res;
 	}
-
-	/**
-	 * Returns the substring of a string leading up to the given pattern, or the
-	 * whole string if the pattern is not encountered.
-	 */
-	private static String upto(Pattern pattern, String str, int offset) {
-		Matcher matcher = pattern.matcher(str);
-		
-		if (!matcher.find(offset)) {
-			return str.substring(offset);
-		} else {
-			return str.substring(offset, matcher.start());
-		}
-	}
 	
 	/**
-	 * Returns the substring of a string leading up to the given character, or
-	 * the whole string if the character is not encountered.
+	 * Returns the offset of the first character at or after `offset` that
+	 * isn't in the given character class, or the length of the string if
+	 * there is none.
 	 */
-	private static String upto(char chr, String str, int offset) {
-		int idx = str.indexOf(chr, offset);
+	private static int skip(int cls, String str, int offset) {
+		int length = str.length();
 		
-		if (idx == -1) {
-			return str.substring(offset);
-		} else {
-			return str.substring(offset, idx);
+		while (offset < length) {
+			char chr = str.charAt(offset);
+			if (chr >= 128 || (CLASSES[chr] & cls) == 0)
+				break;
+			offset++;
 		}
-	}
-	
-	// Helper functions
-	/** Returns whether a character is ignoreable. */
-	private static boolean isIgnoreable(char chr) {
-		return chr == '\t' || chr == '\f' || chr == ' ' || chr == '\r';
-	}
-
-	/** Returns whether a character is parenthesis-like, i.e. is paired with a
-	 *  corresponding closing character. */
-	private static boolean isParenLike(char chr) {
-		return chr == '[' || chr == ']';
-	}
-	
-	/** Returns whether a character represents an operator. */
-	private static boolean isOperator(char chr) {
-		return chr == '+' || chr == '-' || chr == '*' || chr == '/';
+		
+		return offset;
 	}
 }
@@ -23,7 +23,7 @@ public class AssemblerParser {
 		res.add(sublist);
 		
 		for (Token token : tokens) {
-			if (token.getType().equals("LF")) {
+			if (token.getKind() == TokenKind.LF) {
 				sublist = new ArrayList<Token>();
 				res.add(sublist);
 				
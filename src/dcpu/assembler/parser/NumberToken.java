@@ -8,6 +8,15 @@ public class NumberToken extends Token {
 		this.integerValue = parseNumber(value);
     }
 	
+	/**
+	 * Creates a new number token, whose value is the characters of `source`
+	 * from `start` up to `end`.
+	 */
+	NumberToken(String source, int start, int end, TokenPosition pos) {
+		super(TokenKind.NUMBER, source, start, end, pos);
+		this.integerValue = parseNumber(source, start, end);
+	}
+	
 	private static int parseNumber(String str) {
 		if (str.startsWith("0x")) {
 			return Integer.parseInt(str.substring(2), 16);
@@ -16,6 +25,34 @@ public class NumberToken extends Token {
 		}
 	}
 	
+	/**
+	 * Parses the number from `start` up to `end` in the given string, either
+	 * decimal or hex (prefixed by "0x"), without cutting it out of the string.
+	 */
+	static int parseNumber(String str, int start, int end) {
+		int radix = 10;
+		if (end - start >= 2 && str.charAt(start) == '0' && str.charAt(start + 1) == 'x') {
+			radix  = 16;
+			start += 2;
+		}
+		
+		long value = 0;
+		for (int i=start; i<end && value <= Integer.MAX_VALUE; i++) {
+			int digit = Character.digit(str.charAt(i), radix);
+			if (digit < 0) {
+				value = -1;
+				break;
+			}
+			value = value * radix + digit;
+		}
+		
+		// Let Integer tell what is wrong with it, if anything.
+		if (start == end || value < 0 || value > Integer.MAX_VALUE)
+			return Integer.parseInt(str.substring(start, end), radix);
+		
+		return (int)value;
+	}
+	
 	/**
 	 * Returns the integer value that this number token wraps.
 	 */
@@ -7,10 +7,16 @@ package dcpu.assembler.parser;
  *
  */
 public class Token {
-	private String        type;
+	private TokenKind     kind;
 	private String        value;
 	private TokenPosition position;
 	
+	// Where the value is found, for tokens made by the lexer.  It is only cut
+	// out of the source once asked for.
+	private final String  source;
+	private final int     start;
+	private final int     end;
+	
 	/**
 	 * Creates a new token of the given type, associated with the given value.
 	 * The value of a token is the characters that the token consists of.  No
@@ -20,23 +26,47 @@ public class Token {
 	 * @param value the value that this token holds.
 	 */
 	public Token(String type, String value, TokenPosition pos) {
-		this.type     = type;
+		this.kind     = TokenKind.valueOf(type);
 		this.value    = value;
 		this.position = pos;
+		this.source   = value;
+		this.start    = 0;
+		this.end      = value.length();
+	}
+	
+	/**
+	 * Creates a new token of the given kind, whose value is the characters of
+	 * `source` from `start` up to `end`.
+	 */
+	Token(TokenKind kind, String source, int start, int end, TokenPosition pos) {
+		this.kind     = kind;
+		this.position = pos;
+		this.source   = source;
+		this.start    = start;
+		this.end      = end;
 	}
 	
 	/**
-	 * Returns the type of this token.
+	 * Returns the type of this token, i.e. the name of its kind.
 	 */
 	public String getType() {
-	    return type;
+	    return kind.name();
     }
 	
+	/**
+	 * Returns the kind of this token.
+	 */
+	public TokenKind getKind() {
+		return kind;
+	}
+	
 	/**
 	 * Returns the value associated with this token, i.e. the characters that it
 	 * consists of.
 	 */
 	public String getValue() {
+		if (value == null)
+			value = source.substring(start, end);
 	    return value;
     }
 	
@@ -49,6 +79,6 @@ public class Token {
 	
 	@Override
 	public String toString() {
-		return "[" + this.type + ": '" + this.value + "']";
+		return "[" + this.kind + ": '" + getValue() + "']";
 	}
 }
@@ -0,0 +1,15 @@
+package dcpu.assembler.parser;
+
+
+/**
+ * The kinds of tokens that the lexer emits.
+ */
+public enum TokenKind {
+	LF,       // a line feed
+	COMMA,    // ","
+	PAREN,    // "[" or "]"
+	OPERATOR, // "+", "-", "*" or "/"
+	LABEL,    // a label declaration, ":name"
+	NAME,     // a mnemonic, register or label
+	NUMBER    // a decimal or hex ("0x") number literal
+}
@@ -8,16 +8,35 @@ public class TokenPosition {
 	private final String filename;
 	private final int    column;
 	private final int    row;
-	private final String line;
+	private String       line;
+	
+	// The source that the line is part of, and where it starts in it, for
+	// positions made by the lexer.  The line is only cut out once needed.
+	private final String source;
+	private final int    lineStart;
 	
 	/**
 	 * Creates a new Position, with the specified filename, row, column and line.
 	 */
 	public TokenPosition(String filename, int row, int column, String line) {
-		this.filename = filename;
-		this.row      = row;
-		this.column   = column;
-		this.line     = line;
+		this.filename  = filename;
+		this.row       = row;
+		this.column    = column;
+		this.line      = line;
+		this.source    = line;
+		this.lineStart = 0;
+	}
+	
+	/**
+	 * Creates a new Position on the line that starts at `lineStart` in the
+	 * given source.
+	 */
+	TokenPosition(String filename, int row, int column, String source, int lineStart) {
+		this.filename  = filename;
+		this.row       = row;
+		this.column    = column;
+		this.source    = source;
+		this.lineStart = lineStart;
 	}
 	
 	/**
@@ -31,7 +50,7 @@ public class TokenPosition {
 	public String getArrow() {
 		StringBuilder builder = new StringBuilder(this.column);
 		
-		builder.append(this.line);
+		builder.append(getLine());
 		builder.append("\n");
 		
 		for (int i=0; i<this.column; i++) {
@@ -41,4 +60,15 @@ public class TokenPosition {
 		
 		return builder.toString();
 	}
+	
+	/**
+	 * Returns the line of source that this position is on.
+	 */
+	private String getLine() {
+		if (line == null) {
+			int end = source.indexOf('\n', lineStart);
+			line = source.substring(lineStart, end == -1 ? source.length() : end);
+		}
+		return line;
+	}
 }
@@ -0,0 +1,219 @@
+package dcpu.assembler.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * The tokens of a source, as made by AssemblerLexer.tokenize().  Tokens are
+ * kept in parallel arrays of their kind, offset, length and line index, and
+ * are addressed by their index in the stream; a Token object is only made
+ * for a token when asked for, e.g. for error reporting.
+ */
+public class TokenStream {
+	private static final TokenKind[] KINDS = TokenKind.values();
+	
+	private final String source;
+	private final String filename;
+	private final int    firstLine;
+	
+	// Kind (as an ordinal), start offset, length and line index of each token.
+	private byte[] kinds;
+	private int[]  starts;
+	private int[]  lengths;
+	private int[]  lines;
+	private int    size;
+	
+	// Offset at which each line starts.
+	private int[] lineStarts = new int[16];
+	private int   lineCount  = 1;
+	
+	// Token objects made for tokens so far, or null.
+	private Token[] views;
+	
+	/**
+	 * Creates an empty stream of tokens in the given source, which starts at
+	 * line `firstLine`, with room for the given number of tokens to begin
+	 * with.
+	 */
+	TokenStream(String source, String filename, int firstLine, int capacity) {
+		this.source    = source;
+		this.filename  = filename;
+		this.firstLine = firstLine;
+		
+		capacity = Math.max(capacity, 16);
+		kinds   = new byte[capacity];
+		starts  = new int[capacity];
+		lengths = new int[capacity];
+		lines   = new int[capacity];
+	}
+	
+	/**
+	 * Makes a stream of the given tokens, which may come from anywhere.  The
+	 * tokens themselves are kept for error reporting.
+	 */
+	public static TokenStream of(List<Token> tokens) {
+		StringBuilder source = new StringBuilder();
+		for (Token token : tokens)
+			source.append(token.getValue());
+		
+		TokenStream stream = new TokenStream(source.toString(), null, 0, tokens.size());
+		stream.views = new Token[stream.kinds.length];
+		
+		int offset = 0;
+		for (Token token : tokens) {
+			int length = token.getValue().length();
+			stream.views[stream.size] = token;
+			stream.add(token.getKind(), offset, offset + length);
+			offset += length;
+		}
+		
+		return stream;
+	}
+	
+	/**
+	 * Adds a token on the current line.
+	 */
+	void add(TokenKind kind, int start, int end) {
+		if (size == kinds.length)
+			grow();
+		
+		kinds[size]   = (byte)kind.ordinal();
+		starts[size]  = start;
+		lengths[size] = end - start;
+		lines[size]   = lineCount - 1;
+		size++;
+	}
+	
+	/**
+	 * Starts a new line, at the given offset.
+	 */
+	void newLine(int start) {
+		if (lineCount == lineStarts.length)
+			lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+		lineStarts[lineCount++] = start;
+	}
+	
+	private void grow() {
+		int capacity = kinds.length * 2;
+		
+		kinds   = Arrays.copyOf(kinds, capacity);
+		starts  = Arrays.copyOf(starts, capacity);
+		lengths = Arrays.copyOf(lengths, capacity);
+		lines   = Arrays.copyOf(lines, capacity);
+		if (views != null)
+			views = Arrays.copyOf(views, capacity);
+	}
+	
+	/**
+	 * Returns the number of tokens in the stream.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	public TokenKind getKind(int index) {
+		return KINDS[kinds[index]];
+	}
+	
+	/**
+	 * Returns the offset in the source at which the token starts.
+	 */
+	public int getStart(int index) {
+		return starts[index];
+	}
+	
+	/**
+	 * Returns the number of characters the token consists of.
+	 */
+	public int getLength(int index) {
+		return lengths[index];
+	}
+	
+	/**
+	 * Returns the index of the line that the token is on, counting from 0.
+	 * Line feeds belong to the line they start.
+	 */
+	public int getLine(int index) {
+		return firstLine + lines[index];
+	}
+	
+	/**
+	 * Returns the given character of a token.
+	 */
+	public char charAt(int index, int offset) {
+		return source.charAt(starts[index] + offset);
+	}
+	
+	/**
+	 * Returns whether the token consists of just the given character.
+	 */
+	public boolean is(int index, char chr) {
+		return lengths[index] == 1 && source.charAt(starts[index]) == chr;
+	}
+	
+	/**
+	 * Returns whether the token consists of the given characters, ignoring
+	 * case.
+	 */
+	public boolean equalsIgnoreCase(int index, String str) {
+		return lengths[index] == str.length()
+		    && source.regionMatches(true, starts[index], str, 0, str.length());
+	}
+	
+	/**
+	 * Returns the characters of a token, i.e. its value.
+	 */
+	public String getText(int index) {
+		return source.substring(starts[index], starts[index] + lengths[index]);
+	}
+	
+	/**
+	 * Returns the integer value of a number token.
+	 */
+	public int getNumber(int index) {
+		if (views != null && views[index] instanceof NumberToken)
+			return ((NumberToken)views[index]).getIntegerValue();
+		return NumberToken.parseNumber(source, starts[index], starts[index] + lengths[index]);
+	}
+	
+	/**
+	 * Returns a Token for the token at the given index, made the first time
+	 * it is asked for.
+	 */
+	public Token getToken(int index) {
+		if (views == null)
+			views = new Token[kinds.length];
+		
+		Token token = views[index];
+		if (token == null) {
+			int line      = firstLine + lines[index];
+			int lineStart = lineStarts[lines[index]];
+			int start     = starts[index];
+			int end       = start + lengths[index];
+			
+			// Columns count from the line feed before the line, if any.
+			int column = start - lineStart + (line == 0 ? 0 : 1);
+			TokenPosition pos = new TokenPosition(filename, line + 1, column, source, lineStart);
+			
+			if (getKind(index) == TokenKind.NUMBER)
+				token = new NumberToken(source, start, end, pos);
+			else
+				token = new Token(getKind(index), source, start, end, pos);
+			views[index] = token;
+		}
+		
+		return token;
+	}
+	
+	/**
+	 * Returns Tokens for all tokens in the stream.
+	 */
+	public List<Token> toList() {
+		List<Token> res = new ArrayList<Token>(size);
+		for (int i=0; i<size; i++)
+			res.add(getToken(i));
+		return res;
+	}
+}
@@ -0,0 +1,727 @@
+package dcpu.emulator;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Translates a basic block into a hidden JVM class implementing
+ * BlockCompiler.Code, so that HotSpot compiles the guest code like any other
+ * Java method.
+ * 
+ * Registers and literals become plain field and array accesses, and SET, the
+ * arithmetic, bitwise and shift operations are done inline.  Memory still goes
+ * through Cpu.load() and Cpu.store(), for devices, and DIV, MOD and IFx
+ * through Cpu.execute().  Operands are resolved, loaded and stored in the same
+ * order as by the interpreter, and every instruction is followed by
+ * Cpu.instructionDone(), so callbacks and devices see the same thing.
+ * 
+ * A block compiled while recording also records each instruction, just like
+ * the interpreter would, but writes the locations that are already known as
+ * constants.
+ * 
+ * The class files are version 49, which needs no stack map frames.
+ */
+final class BlockCodeGenerator {
+	private static final String CPU_CLASS   = "dcpu/emulator/Cpu";
+	private static final String BLOCK_CLASS = "dcpu/emulator/BlockCompiler$Block";
+	private static final String CODE_CLASS  = "dcpu/emulator/BlockCompiler$Code";
+	private static final String TRACE_CLASS = "dcpu/emulator/TraceRecorder";
+	private static final String RUN_DESC    = "(L" + CPU_CLASS + ";JL" + BLOCK_CLASS + ";)I";
+	
+	// Locals of the generated run(cpu, limit, block): its arguments, the
+	// locations of the two operands, scratch values, and the CPU's trace
+	// recorder.
+	private static final int CPU = 1, LIMIT = 2, BLOCK = 4, DST = 5, SRC = 6,
+	                         RES = 7, SHIFT = 8, TMP = 9, TRACE = 10;
+	private static final int MAX_LOCALS = 11, MAX_STACK = 8;
+	
+	// Bytecodes used.
+	private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13,
+	                         ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19, ISTORE = 0x36,
+	                         SALOAD = 0x35, ASTORE = 0x3a, SASTORE = 0x56, POP = 0x57, DUP = 0x59,
+	                         IADD = 0x60, LADD = 0x61, ISUB = 0x64, IMUL = 0x68,
+	                         ISHL = 0x78, ISHR = 0x7a, IUSHR = 0x7c, IAND = 0x7e,
+	                         IOR = 0x80, IXOR = 0x82, I2L = 0x85, I2C = 0x92, I2S = 0x93,
+	                         LCMP = 0x94, IFEQ = 0x99, IFGE = 0x9c, IF_ICMPLT = 0xa1,
+	                         GOTO = 0xa7, IRETURN = 0xac, RETURN = 0xb1, GETFIELD = 0xb4,
+	                         PUTFIELD = 0xb5, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7;
+	
+	// Kinds of operands.  A DYNAMIC operand is in memory, at a location
+	// computed at runtime and kept in a local.
+	private static final int REGISTER = 0, PC = 1, SP = 2, O = 3, LITERAL = 4,
+	                         ADDRESS = 5, DYNAMIC = 6;
+	
+	private final short[] memory;
+	private final boolean traced;
+	
+	// The constant pool, and the index of each constant in it.
+	private final Bytes pool = new Bytes();
+	private final Map<String, Integer> constants = new HashMap<String, Integer>();
+	private int constantCount = 1;
+	
+	// The code of run(), the position of each label in it (or -1), and the
+	// branches to labels, as the position of the branch and the label.
+	private final Bytes code = new Bytes();
+	private int[] labels = new int[0];
+	private final List<int[]> branches = new ArrayList<int[]>();
+	
+	// Bytes of the record being written that are known but not written yet
+	// (the first `pendingCount` bytes of `pendingBytes`, lowest first), and
+	// whether the record has been started.
+	private int     pendingBytes, pendingCount;
+	private boolean recordStarted;
+	
+	private BlockCodeGenerator(short[] memory, boolean traced) {
+		this.memory = memory;
+		this.traced = traced;
+	}
+	
+	/**
+	 * Compiles the given instructions, decoded as by Cpu.decodedAt() and found
+	 * at the given addresses of `memory`, into a new hidden class, and returns
+	 * an instance of it.  If `traced`, the code records the instructions to
+	 * the CPU's trace recorder, which must then be set whenever it runs.
+	 */
+	static BlockCompiler.Code generate(short[] memory, int[] addresses, int[] insns, int count,
+			boolean traced) {
+		byte[] bytes = new BlockCodeGenerator(memory, traced).classFile(addresses, insns, count);
+		try {
+			Class<?> type = MethodHandles.lookup().defineHiddenClass(bytes, true).lookupClass();
+			return (BlockCompiler.Code)type.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+	
+	private byte[] classFile(int[] addresses, int[] insns, int count) {
+		// run() returns the number of instructions run: all of them, or as
+		// many as ran before the block stopped early (see Block.run()).
+		labels = new int[count];
+		Arrays.fill(labels, -1);
+		
+		if (traced) {
+			load(CPU);
+			field(GETFIELD, "trace", "L" + TRACE_CLASS + ";");
+			code.u1(ASTORE).u1(TRACE);
+		}
+		
+		for (int i=0; i<count; i++) {
+			if (i > 0) {
+				load(CPU);
+				field(GETFIELD, "cycleCount", "J");
+				code.u1(LLOAD).u1(LIMIT);
+				code.u1(LCMP);
+				branch(IFGE, i);
+				load(CPU);
+				field(GETFIELD, "isRunning", "Z");
+				branch(IFEQ, i);
+			}
+			
+			instruction(addresses[i], insns[i]);
+			
+			// The instruction may have overwritten the rest of this block.
+			if (i < count - 1) {
+				load(BLOCK);
+				code.u1(GETFIELD).u2(fieldRef(BLOCK_CLASS, "valid", "Z"));
+				branch(IFEQ, i + 1);
+			}
+		}
+		push(count);
+		code.u1(IRETURN);
+		
+		for (int i=1; i<count; i++) {
+			labels[i] = code.length;
+			push(i);
+			code.u1(IRETURN);
+		}
+		
+		for (int[] branch : branches) {
+			int offset = labels[branch[1]] - branch[0];
+			code.data[branch[0] + 1] = (byte)(offset >> 8);
+			code.data[branch[0] + 2] = (byte)offset;
+		}
+		
+		// The constructor.
+		Bytes init = new Bytes();
+		init.u1(ALOAD).u1(0);
+		init.u1(INVOKESPECIAL).u2(methodRef("java/lang/Object", "<init>", "()V"));
+		init.u1(RETURN);
+		
+		int thisClass  = classRef("dcpu/emulator/CompiledBlock");
+		int superClass = classRef("java/lang/Object");
+		int codeClass  = classRef(CODE_CLASS);
+		int initName = utf8("<init>"), initDesc = utf8("()V");
+		int runName  = utf8("run"),    runDesc  = utf8(RUN_DESC);
+		int codeName = utf8("Code");
+		
+		Bytes out = new Bytes();
+		out.u4(0xcafebabe).u2(0).u2(49);
+		out.u2(constantCount).bytes(pool);
+		out.u2(0x0031).u2(thisClass).u2(superClass);  // public final super
+		out.u2(1).u2(codeClass);
+		out.u2(0);
+		out.u2(2);
+		method(out, initName, initDesc, codeName, 1, 1, init);
+		method(out, runName, runDesc, codeName, MAX_STACK, MAX_LOCALS, code);
+		out.u2(0);
+		return Arrays.copyOf(out.data, out.length);
+	}
+	
+	private static void method(Bytes out, int name, int descriptor, int codeName,
+			int maxStack, int maxLocals, Bytes body) {
+		out.u2(0x0001).u2(name).u2(descriptor);  // public
+		out.u2(1);
+		out.u2(codeName).u4(12 + body.length);
+		out.u2(maxStack).u2(maxLocals);
+		out.u4(body.length).bytes(body);
+		out.u2(0);
+		out.u2(0);
+	}
+	
+	//-- Instructions.
+	
+	private void instruction(int address, int insn) {
+		int length = (insn >>> 16) & 3;
+		int opcode = insn & 0xf;
+		int a = (insn >>> 4) & 0x3f;
+		int b = (insn >>> 10) & 0x3f;
+		int word = address + 1;
+		
+		load(CPU);
+		push((short)(address + length));
+		field(PUTFIELD, "pc", "S");
+		
+		if (opcode == 0) {
+			// JSR, the only other instruction a block can contain.
+			addCycles(2 + Cpu.operandLength(b));
+			int[] target = operand(b, word, DST);
+			load(CPU);
+			load(target);
+			method("jsr", "(S)V");
+			
+			if (traced)
+				record(address, insn, null, target);
+		} else {
+			boolean inline = opcode <= 0x4 || (opcode >= 0x7 && opcode <= 0xb);
+			int cycles = Cpu.operandLength(a) + Cpu.operandLength(b);
+			if (inline)
+				cycles += opcode == 0x1 || opcode >= 0x9 ? 1 : 2;
+			addCycles(cycles);
+			
+			int[] dst = operand(a, word, DST);
+			word += Cpu.operandLength(a);
+			int[] src = operand(b, word, SRC);
+			
+			if (inline) {
+				operation(opcode, dst, src);
+				if (dst[0] == ADDRESS || dst[0] == DYNAMIC) {
+					load(CPU);
+					location(dst);
+					method("invalidate", "(I)V");
+				}
+				load(CPU);
+				location(dst);
+				method("memoryTouched", "(I)V");
+			} else {
+				load(CPU);
+				push(opcode);
+				location(dst);
+				location(src);
+				method("execute", "(III)V");
+			}
+			
+			if (traced)
+				record(address, insn, dst, src);
+		}
+		
+		load(CPU);
+		method("instructionDone", "()V");
+	}
+	
+	/**
+	 * Performs one of the operations done inline, exactly like
+	 * Cpu.execute(int, int, int) less the cycles.
+	 */
+	private void operation(int opcode, int[] dst, int[] src) {
+		switch (opcode) {
+			//SET
+			case 0x1:
+				storeBegin(dst);
+				load(src);
+				storeEnd(dst);
+				break;
+			//ADD, SUB, MUL
+			case 0x2:
+			case 0x3:
+			case 0x4:
+				load(dst);
+				code.u1(I2C);
+				load(src);
+				code.u1(I2C);
+				code.u1(opcode == 0x2 ? IADD : opcode == 0x3 ? ISUB : IMUL);
+				code.u1(ISTORE).u1(RES);
+				
+				storeBegin(dst);
+				load(RES);
+				storeEnd(dst);
+				
+				// The overflow is the upper half of the result, except that SUB
+				// wants 0xffff for any negative result.
+				load(CPU);
+				load(RES);
+				push(16);
+				code.u1(opcode == 0x3 ? ISHR : IUSHR);
+				code.u1(I2S);
+				field(PUTFIELD, "o", "S");
+				break;
+			//SHL, SHR
+			case 0x7:
+			case 0x8: {
+				int big = newLabel(), end = newLabel();
+				load(src);
+				code.u1(I2C);
+				code.u1(ISTORE).u1(SHIFT);
+				load(SHIFT);
+				push(32);
+				branch(IF_ICMPLT, big);
+				
+				// Shifts of 32 or more clear both the value and the overflow.
+				storeBegin(dst);
+				push(0);
+				storeEnd(dst);
+				load(CPU);
+				push(0);
+				field(PUTFIELD, "o", "S");
+				branch(GOTO, end);
+				
+				labels[big] = code.length;
+				load(dst);
+				code.u1(ISTORE).u1(RES);
+				storeBegin(dst);
+				load(RES);
+				code.u1(I2C);
+				load(SHIFT);
+				code.u1(opcode == 0x7 ? ISHL : IUSHR);
+				storeEnd(dst);
+				
+				load(CPU);
+				if (opcode == 0x7) {
+					load(RES);
+					code.u1(I2C);
+					load(SHIFT);
+					code.u1(ISHL);
+					push(16);
+					code.u1(IUSHR);
+				} else {
+					load(RES);
+					push(16);
+					code.u1(ISHL);
+					load(SHIFT);
+					code.u1(IUSHR);
+				}
+				code.u1(I2S);
+				field(PUTFIELD, "o", "S");
+				labels[end] = code.length;
+				break;
+			}
+			//AND, BOR, XOR
+			default:
+				storeBegin(dst);
+				load(dst);
+				load(src);
+				code.u1(opcode == 0x9 ? IAND : opcode == 0xa ? IOR : IXOR);
+				storeEnd(dst);
+				break;
+		}
+	}
+	
+	//-- Recording.
+	
+	/**
+	 * Records the instruction that was just run, like Cpu.execute(int, int)
+	 * does, through the TraceRecorder in TRACE.  `dst` is null for a JSR,
+	 * whose destination is the address it pushed to.
+	 */
+	private void record(int address, int insn, int[] dst, int[] src) {
+		int length = (insn >>> 16) & 3;
+		int opcode = insn & 0xf;
+		
+		recordStarted = false;
+		if (dst == null) {
+			flushRecord();
+			load(TRACE);
+			load(CPU);
+			field(GETFIELD, "sp", "S");
+			code.u1(I2C);
+			recorder("recordLocation", "(I)V");
+		} else {
+			recordLocation(dst);
+		}
+		recordLocation(src);
+		
+		if (opcode < 0xc) {
+			flushRecord();
+			load(TRACE);
+			if (dst == null)
+				push((short)(address + length));
+			else
+				peek(dst);
+			recorder("recordWord", "(I)V");
+		}
+		if (opcode >= 0x2 && opcode <= 0x8) {
+			load(TRACE);
+			load(CPU);
+			field(GETFIELD, "o", "S");
+			recorder("recordWord", "(I)V");
+		}
+		
+		flushRecord();
+		if (opcode >= 0xc) {
+			load(TRACE);
+			push(address + length);
+			recorder("recordSkipped", "(I)V");
+		} else if (opcode == 0) {
+			load(TRACE);
+			recorder("recordPc", "()V");
+		}
+	}
+	
+	/**
+	 * Records the location of the given operand: as constant bytes, unless it
+	 * is only known at runtime.
+	 */
+	private void recordLocation(int[] operand) {
+		if (operand[0] == DYNAMIC) {
+			flushRecord();
+			load(TRACE);
+			load(operand[1]);
+			recorder("recordLocation", "(I)V");
+			return;
+		}
+		
+		int value = TraceRecorder.encodeLocation(locationOf(operand));
+		while ((value & ~0x7f) != 0) {
+			recordByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		recordByte(value);
+	}
+	
+	private void recordByte(int value) {
+		if (pendingCount == 4)
+			flushRecord();
+		pendingBytes |= (value & 0xff) << (8 * pendingCount);
+		pendingCount++;
+	}
+	
+	/**
+	 * Writes the pending bytes of the record, and starts it if that hasn't
+	 * been done yet.
+	 */
+	private void flushRecord() {
+		if (recordStarted && pendingCount == 0)
+			return;
+		
+		load(TRACE);
+		push(pendingBytes);
+		push(pendingCount);
+		recorder(recordStarted ? "recordBytes" : "recordStart", "(II)V");
+		
+		recordStarted = true;
+		pendingBytes  = 0;
+		pendingCount  = 0;
+	}
+	
+	//-- Operands.
+	
+	/**
+	 * Resolves the operand with the given code, with `word` being the address
+	 * of its "next word" (if it has one), like Cpu.getValue() does.  Returns
+	 * its kind and value: a register id, a literal, an address or the local
+	 * `local` that its location was stored in.
+	 */
+	private int[] operand(int code, int word, int local) {
+		if (code <= 0x07)
+			return new int[] { REGISTER, code };
+		
+		if (code <= 0x0f) {
+			register(code - 0x08);
+			this.code.u1(I2C);
+		} else if (code <= 0x17) {
+			push(memory[word]);
+			register(code - 0x10);
+			this.code.u1(IADD);
+			this.code.u1(I2C);
+		} else if (code == 0x18 || code == 0x1a) {
+			// POP is the old SP, PUSH the new one.
+			load(CPU);
+			field(GETFIELD, "sp", "S");
+			if (code == 0x1a) {
+				push(1);
+				this.code.u1(ISUB);
+				this.code.u1(I2S);
+			}
+			this.code.u1(ISTORE).u1(TMP);
+			load(CPU);
+			load(TMP);
+			if (code == 0x18) {
+				push(1);
+				this.code.u1(IADD);
+				this.code.u1(I2S);
+			}
+			field(PUTFIELD, "sp", "S");
+			load(TMP);
+			this.code.u1(I2C);
+		} else if (code == 0x19) {
+			load(CPU);
+			field(GETFIELD, "sp", "S");
+			this.code.u1(I2C);
+		} else if (code == 0x1b) {
+			return new int[] { SP, 0 };
+		} else if (code == 0x1c) {
+			return new int[] { PC, 0 };
+		} else if (code == 0x1d) {
+			return new int[] { O, 0 };
+		} else if (code == 0x1e) {
+			return new int[] { ADDRESS, memory[word] & 0xffff };
+		} else if (code == 0x1f) {
+			return new int[] { LITERAL, memory[word] & 0xffff };
+		} else {
+			return new int[] { LITERAL, code - 0x20 };
+		}
+		
+		this.code.u1(ISTORE).u1(local);
+		return new int[] { DYNAMIC, local };
+	}
+	
+	/**
+	 * Pushes the location of the given operand, as Cpu.getValue() returns it.
+	 */
+	private void location(int[] operand) {
+		if (operand[0] == DYNAMIC)
+			load(operand[1]);
+		else
+			push(locationOf(operand));
+	}
+	
+	/**
+	 * Returns the location of the given operand, which mustn't be DYNAMIC.
+	 */
+	private static int locationOf(int[] operand) {
+		switch (operand[0]) {
+			case REGISTER: return 0x10000 + operand[1];
+			case PC:       return Cpu.PC;
+			case SP:       return Cpu.SP;
+			case O:        return Cpu.O;
+			case LITERAL:  return Cpu.LITERAL | operand[1];
+			default:       return operand[1];
+		}
+	}
+	
+	/**
+	 * Pushes the value of the given operand, like Cpu.load().
+	 */
+	private void load(int[] operand) {
+		switch (operand[0]) {
+			case REGISTER: register(operand[1]);                     break;
+			case PC:       load(CPU); field(GETFIELD, "pc", "S");    break;
+			case SP:       load(CPU); field(GETFIELD, "sp", "S");    break;
+			case O:        load(CPU); field(GETFIELD, "o", "S");     break;
+			case LITERAL:  push((short)operand[1]);                  break;
+			default:
+				load(CPU);
+				location(operand);
+				method("load", "(I)S");
+				break;
+		}
+	}
+	
+	/**
+	 * Pushes the value of the given operand like Cpu.peek(), which doesn't
+	 * read from devices.
+	 */
+	private void peek(int[] operand) {
+		if (operand[0] == ADDRESS || operand[0] == DYNAMIC) {
+			load(CPU);
+			location(operand);
+			method("peek", "(I)S");
+		} else {
+			load(operand);
+		}
+	}
+	
+	/**
+	 * Stores to the given operand, like Cpu.store(): storeBegin() comes before
+	 * the value is pushed, and storeEnd() after.
+	 */
+	private void storeBegin(int[] operand) {
+		switch (operand[0]) {
+			case REGISTER:
+				load(CPU);
+				field(GETFIELD, "registers", "[S");
+				push(operand[1]);
+				break;
+			case LITERAL:
+				break;
+			case ADDRESS:
+			case DYNAMIC:
+				load(CPU);
+				location(operand);
+				break;
+			default:
+				load(CPU);
+				break;
+		}
+	}
+	
+	private void storeEnd(int[] operand) {
+		switch (operand[0]) {
+			case REGISTER: code.u1(SASTORE);                          break;
+			case PC:       code.u1(I2S); field(PUTFIELD, "pc", "S");  break;
+			case SP:       code.u1(I2S); field(PUTFIELD, "sp", "S");  break;
+			case O:        code.u1(I2S); field(PUTFIELD, "o", "S");   break;
+			case LITERAL:  code.u1(POP);                              break;
+			default:       code.u1(I2S); method("store", "(IS)V");    break;
+		}
+	}
+	
+	//-- Bytecode.
+	
+	private void register(int id) {
+		load(CPU);
+		field(GETFIELD, "registers", "[S");
+		push(id);
+		code.u1(SALOAD);
+	}
+	
+	private void addCycles(int cycles) {
+		load(CPU);
+		code.u1(DUP);
+		field(GETFIELD, "cycleCount", "J");
+		push(cycles);
+		code.u1(I2L);
+		code.u1(LADD);
+		field(PUTFIELD, "cycleCount", "J");
+	}
+	
+	private void load(int local) {
+		code.u1(local == CPU || local == BLOCK || local == TRACE ? ALOAD : ILOAD).u1(local);
+	}
+	
+	private void push(int value) {
+		if (value >= -1 && value <= 5)
+			code.u1(ICONST_0 + value);
+		else if (value == (byte)value)
+			code.u1(BIPUSH).u1(value);
+		else if (value == (short)value)
+			code.u1(SIPUSH).u2(value);
+		else
+			code.u1(LDC_W).u2(constant("I" + value, 3, value));
+	}
+	
+	private void field(int bytecode, String name, String descriptor) {
+		code.u1(bytecode).u2(fieldRef(CPU_CLASS, name, descriptor));
+	}
+	
+	private void method(String name, String descriptor) {
+		code.u1(INVOKEVIRTUAL).u2(methodRef(CPU_CLASS, name, descriptor));
+	}
+	
+	private void recorder(String name, String descriptor) {
+		code.u1(INVOKEVIRTUAL).u2(methodRef(TRACE_CLASS, name, descriptor));
+	}
+	
+	private int newLabel() {
+		labels = Arrays.copyOf(labels, labels.length + 1);
+		labels[labels.length - 1] = -1;
+		return labels.length - 1;
+	}
+	
+	private void branch(int bytecode, int label) {
+		branches.add(new int[] { code.length, label });
+		code.u1(bytecode).u2(0);
+	}
+	
+	//-- Constant pool.
+	
+	private int utf8(String text) {
+		Integer index = constants.get("U" + text);
+		if (index != null)
+			return index;
+		
+		pool.u1(1).u2(text.length());
+		for (int i=0; i<text.length(); i++)
+			pool.u1(text.charAt(i));
+		constants.put("U" + text, constantCount);
+		return constantCount++;
+	}
+	
+	private int classRef(String name) {
+		return constant("C" + name, 7, utf8(name));
+	}
+	
+	private int fieldRef(String owner, String name, String descriptor) {
+		return constant("F" + owner + "." + name, 9, classRef(owner), nameAndType(name, descriptor));
+	}
+	
+	private int methodRef(String owner, String name, String descriptor) {
+		return constant("M" + owner + "." + name + descriptor, 10,
+				classRef(owner), nameAndType(name, descriptor));
+	}
+	
+	private int nameAndType(String name, String descriptor) {
+		return constant("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+	}
+	
+	/**
+	 * Returns the index of the constant with the given key, adding it to the
+	 * pool with the given tag and u2 contents (or a single u4, for integers)
+	 * if it isn't there yet.
+	 */
+	private int constant(String key, int tag, int... contents) {
+		Integer index = constants.get(key);
+		if (index != null)
+			return index;
+		
+		pool.u1(tag);
+		if (tag == 3)
+			pool.u4(contents[0]);
+		else
+			for (int value : contents)
+				pool.u2(value);
+		constants.put(key, constantCount);
+		return constantCount++;
+	}
+	
+	/** A growable array of bytes, written big-endian. */
+	private static final class Bytes {
+		byte[] data = new byte[256];
+		int    length;
+		
+		Bytes u1(int value) {
+			if (length == data.length)
+				data = Arrays.copyOf(data, length * 2);
+			data[length++] = (byte)value;
+			return this;
+		}
+		
+		Bytes u2(int value) {
+			return u1(value >> 8).u1(value);
+		}
+		
+		Bytes u4(int value) {
+			return u2(value >> 16).u2(value);
+		}
+		
+		Bytes bytes(Bytes other) {
+			for (int i=0; i<other.length; i++)
+				u1(other.data[i]);
+			return this;
+		}
+	}
+}
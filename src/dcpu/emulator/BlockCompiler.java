@@ -0,0 +1,234 @@
+package dcpu.emulator;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Second execution tier of the Cpu.  Counts how often each basic block is
+ * entered, and once a block is hot, compiles it into JVM bytecode, as a hidden
+ * class (see BlockCodeGenerator) that HotSpot then compiles further.
+ * 
+ * A basic block ends at an instruction that may change the flow of control:
+ * one that writes PC, a JSR, or an IFx (whose skip is then done at runtime).
+ * A block stops early, between two instructions, once the cycle limit it is
+ * run with is reached or the CPU is stopped, just like the interpreter loop
+ * would; so compiled blocks produce exactly the same state, cycle count and
+ * callbacks as running the same instructions through Cpu.executeNext().
+ * 
+ * Every word a compiled block was built from is tracked; writing to one of
+ * them throws away the blocks covering it, so self-modifying code still runs
+ * correctly (if slowly).
+ * 
+ * Blocks compiled while the CPU records a trace record their instructions
+ * too; the Cpu throws all blocks away when recording starts or stops.
+ */
+class BlockCompiler {
+	/** Number of times a block must be entered before it is compiled. */
+	private static final int THRESHOLD = 16;
+	
+	/** Maximum number of instructions in a single compiled block. */
+	private static final int MAX_INSTRUCTIONS = 32;
+	
+	/** Maximum number of words a single compiled block can span. */
+	private static final int MAX_WORDS = MAX_INSTRUCTIONS * 3;
+	
+	/** Maximum number of generated classes kept for reuse. */
+	private static final int CACHE_SIZE = 4096;
+	
+	// Generated code by the start address and words of its block, shared by
+	// all CPUs, so that blocks thrown away (or seen in another CPU) with the
+	// same code don't need a new class.  Least recently used code goes first,
+	// and its class is unloaded once no block uses it any more.
+	private static final Map<String, Code> CACHE = new LinkedHashMap<String, Code>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Code> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+	
+	private final Cpu cpu;
+	private final short[] memory;
+	
+	// Compiled blocks by start address, and how often each address has been
+	// entered as the start of a block.
+	private final Block[] blocks = new Block[0x10000];
+	private final byte[] heat = new byte[0x10000];
+	
+	// Number of compiled blocks that cover each address.  At most MAX_WORDS
+	// blocks can overlap, so this fits in a byte.
+	private final byte[] coverage = new byte[0x10000];
+	
+	// Whether the next instruction starts a new basic block.
+	private boolean atBlockStart = true;
+	
+	BlockCompiler(Cpu cpu) {
+		this.cpu    = cpu;
+		this.memory = cpu.memory;
+	}
+	
+	/**
+	 * Executes the compiled block at PC if there is one, or else a single
+	 * instruction through the interpreter.  A block stops before any
+	 * instruction that would start at or after the cycle `limit`.
+	 */
+	void executeNext(long limit) {
+		int pc = cpu.pc & 0xffff;
+		Block block = blocks[pc];
+		
+		if (block == null && atBlockStart) {
+			if (heat[pc] < THRESHOLD) {
+				heat[pc]++;
+			} else {
+				heat[pc] = 0;
+				block = compile(pc);
+			}
+		}
+		
+		if (block != null) {
+			cpu.compiledCount += block.run(limit);
+			atBlockStart = true;
+		} else {
+			int insn = cpu.decodedAt(pc);
+			// A fused pair always ends with a jump, skip or JSR.
+			atBlockStart = cpu.executeFused(limit) > 1 || endsBlock(insn);
+		}
+	}
+	
+	/**
+	 * Throws away all compiled blocks that cover the given address.
+	 */
+	void invalidate(int address) {
+		if (coverage[address] == 0)
+			return;
+		
+		for (int start = address; start >= 0 && start > address - MAX_WORDS; start--) {
+			Block block = blocks[start];
+			if (block != null && block.end > address)
+				remove(block);
+		}
+	}
+	
+	/**
+	 * Throws away all compiled blocks.
+	 */
+	void flush() {
+		for (Block block : blocks) {
+			if (block != null)
+				block.valid = false;
+		}
+		Arrays.fill(blocks, null);
+		Arrays.fill(coverage, (byte)0);
+	}
+	
+	private void remove(Block block) {
+		block.valid = false;
+		blocks[block.start] = null;
+		for (int i=block.start; i<block.end; i++)
+			coverage[i]--;
+	}
+	
+	/**
+	 * Returns whether the given decoded instruction ends a basic block.
+	 */
+	private static boolean endsBlock(int insn) {
+		int opcode = insn & 0xf;
+		int a = (insn >>> 4) & 0x3f;
+		
+		return opcode == 0 || opcode >= 0xc || a == 0x1c;
+	}
+	
+	/**
+	 * Compiles the basic block starting at the given address, or returns null
+	 * if there is nothing there that can be compiled.
+	 */
+	private Block compile(int start) {
+		int[] addresses = new int[MAX_INSTRUCTIONS];
+		int[] insns     = new int[MAX_INSTRUCTIONS];
+		int count = 0;
+		int address = start;
+		
+		while (count < MAX_INSTRUCTIONS && address < 0x10000) {
+			int insn   = cpu.decodedAt(address);
+			int length = (insn >>> 16) & 3;
+			int opcode = insn & 0xf;
+			int a = (insn >>> 4) & 0x3f;
+			
+			// Leave halts and instructions wrapping around the end of memory to
+			// the interpreter.
+			if ((opcode == 0 && a != 0x01) || address + length > 0x10000)
+				break;
+			
+			addresses[count] = address;
+			insns[count]     = insn;
+			count++;
+			
+			address += length;
+			if (endsBlock(insn))
+				break;
+		}
+		
+		if (count == 0)
+			return null;
+		
+		// The code only depends on the words of the block, where they are and
+		// whether it records.
+		boolean traced = cpu.trace != null;
+		StringBuilder key = new StringBuilder().append(traced ? 'T' : 'R').append((char)start);
+		for (int i=start; i<address; i++)
+			key.append((char)memory[i]);
+		
+		Code code;
+		synchronized (CACHE) {
+			code = CACHE.get(key.toString());
+		}
+		if (code == null) {
+			code = BlockCodeGenerator.generate(memory, addresses, insns, count, traced);
+			synchronized (CACHE) {
+				CACHE.put(key.toString(), code);
+			}
+		}
+		
+		Block block = new Block(start, address, code);
+		blocks[start] = block;
+		for (int i=start; i<address; i++)
+			coverage[i]++;
+		
+		return block;
+	}
+	
+	/**
+	 * The generated code of a block, see BlockCodeGenerator.  Runs the block
+	 * on the given CPU like Block.run(), and returns the number of instructions
+	 * run.
+	 */
+	interface Code {
+		int run(Cpu cpu, long limit, Block block);
+	}
+	
+	final class Block {
+		final int  start;
+		final int  end;
+		final Code code;
+		boolean    valid = true;
+		
+		Block(int start, int end, Code code) {
+			this.start = start;
+			this.end   = end;
+			this.code  = code;
+		}
+		
+		/**
+		 * Runs the block, up to the first instruction that would start at or
+		 * after the cycle `limit` or after the CPU was stopped, and returns
+		 * the number of instructions run.  The first instruction always runs.
+		 * The block also stops when an instruction overwrote the rest of it.
+		 */
+		int run(long limit) {
+			return code.run(cpu, limit, this);
+		}
+	}
+}
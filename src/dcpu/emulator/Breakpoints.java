@@ -0,0 +1,127 @@
+package dcpu.emulator;
+
+import java.util.Arrays;
+
+
+/**
+ * A set of execution breakpoints and memory watchpoints, each kept as a bitset
+ * over the address space.  Attach it to a Cpu with Cpu.setBreakpoints; the
+ * CPU then stops when one is hit and reports it to the listener.
+ */
+public class Breakpoints {
+	/** The kinds of things that can stop the CPU. */
+	public static enum Kind {
+		BREAKPOINT, // about to execute the address
+		READ,       // an instruction read from the address
+		WRITE       // an instruction wrote to the address
+	}
+	
+	public static interface Listener {
+		/**
+		 * Called on the CPU thread after the CPU has stopped.
+		 */
+		public void onHit(Kind kind, int address);
+	}
+	
+	private final long[] breakpoints = new long[0x10000 / 64];
+	private final long[] readWatch   = new long[0x10000 / 64];
+	private final long[] writeWatch  = new long[0x10000 / 64];
+	
+	private final Listener listener;
+	
+	// The watchpoint hit by the last instruction, if any.
+	private Kind hitKind;
+	private int  hitAddress;
+	
+	public Breakpoints(Listener listener) {
+		this.listener = listener;
+	}
+	
+	public void setBreakpoint(int address, boolean enabled) {
+		set(breakpoints, address, enabled);
+	}
+	
+	public void setReadWatchpoint(int address, boolean enabled) {
+		set(readWatch, address, enabled);
+	}
+	
+	public void setWriteWatchpoint(int address, boolean enabled) {
+		set(writeWatch, address, enabled);
+	}
+	
+	public boolean isBreakpoint(int address) {
+		return isSet(breakpoints, address);
+	}
+	
+	public boolean isReadWatchpoint(int address) {
+		return isSet(readWatch, address);
+	}
+	
+	public boolean isWriteWatchpoint(int address) {
+		return isSet(writeWatch, address);
+	}
+	
+	/**
+	 * Removes all breakpoints and watchpoints.
+	 */
+	public void clear() {
+		Arrays.fill(breakpoints, 0);
+		Arrays.fill(readWatch, 0);
+		Arrays.fill(writeWatch, 0);
+	}
+	
+	/**
+	 * Checks the operand locations of an instruction that was just executed
+	 * against the watchpoints.  `dst` is -1 for a halt; for a JSR, it's the
+	 * address the return address was pushed to.
+	 */
+	void accessed(int opcode, int dst, int src) {
+		if (dst < 0)
+			return;
+		
+		// Every instruction reads its source; all but SET and JSR also read
+		// their destination, and all but IFx write it.
+		if (src < 0x10000 && isSet(readWatch, src)) {
+			hitKind    = Kind.READ;
+			hitAddress = src;
+		}
+		if (dst < 0x10000) {
+			if (opcode < 0xc && isSet(writeWatch, dst)) {
+				hitKind    = Kind.WRITE;
+				hitAddress = dst;
+			} else if (opcode > 0x1 && isSet(readWatch, dst)) {
+				hitKind    = Kind.READ;
+				hitAddress = dst;
+			}
+		}
+	}
+	
+	void clearHit() {
+		hitKind = null;
+	}
+	
+	boolean hasHit() {
+		return hitKind != null;
+	}
+	
+	void reportHit() {
+		hit(hitKind, hitAddress);
+	}
+	
+	void hit(Kind kind, int address) {
+		hitKind = null;
+		if (listener != null)
+			listener.onHit(kind, address);
+	}
+	
+	private static void set(long[] bits, int address, boolean enabled) {
+		if (enabled)
+			bits[address >>> 6] |= 1L << address;
+		else
+			bits[address >>> 6] &= ~(1L << address);
+	}
+	
+	private static boolean isSet(long[] bits, int address) {
+		return (bits[address >>> 6] & (1L << address)) != 0;
+	}
+}
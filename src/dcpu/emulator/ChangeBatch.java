@@ -0,0 +1,70 @@
+package dcpu.emulator;
+
+
+/**
+ * A set of changes to a Cpu's memory and registers, as collected between two
+ * calls to Cpu.BatchCallback.onBatch.  Each changed address is listed once,
+ * with its value at the time the batch was made.
+ */
+public class ChangeBatch {
+	/** Number of registers; register ids are the same as those passed to
+	 *  Cpu.MemoryCallback.onRegisterChange. */
+	public static final int REGISTER_COUNT = 8 + 1 + 1 + 1;
+	
+	private final int[]   addresses;
+	private final short[] values;
+	private final int     changedRegisters;
+	private final short[] registers;
+	private final long    cycleCount;
+	
+	ChangeBatch(int[] addresses, short[] values, int changedRegisters,
+			short[] registers, long cycleCount) {
+		this.addresses        = addresses;
+		this.values           = values;
+		this.changedRegisters = changedRegisters;
+		this.registers        = registers;
+		this.cycleCount       = cycleCount;
+	}
+	
+	/**
+	 * Returns the number of changed memory addresses in this batch.
+	 */
+	public int size() {
+		return addresses.length;
+	}
+	
+	/**
+	 * Returns the i:th changed memory address, in increasing order.
+	 */
+	public int getAddress(int i) {
+		return addresses[i];
+	}
+	
+	/**
+	 * Returns the value of the i:th changed memory address.
+	 */
+	public short getValue(int i) {
+		return values[i];
+	}
+	
+	/**
+	 * Returns whether the register with the given id may have changed.
+	 */
+	public boolean isRegisterChanged(int id) {
+		return (changedRegisters & (1 << id)) != 0;
+	}
+	
+	/**
+	 * Returns the value of the register with the given id.
+	 */
+	public short getRegister(int id) {
+		return registers[id];
+	}
+	
+	/**
+	 * Returns the cycle count at the time the batch was made.
+	 */
+	public long getCycleCount() {
+		return cycleCount;
+	}
+}
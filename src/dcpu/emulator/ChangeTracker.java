@@ -0,0 +1,110 @@
+package dcpu.emulator;
+
+
+/**
+ * Collects the memory addresses and registers that a Cpu changes, and hands
+ * them to a Cpu.BatchCallback as one ChangeBatch at a limited rate.  Marking a
+ * change only sets a bit, so the cost per instruction stays tiny no matter how
+ * slow the callback is.
+ */
+class ChangeTracker {
+	/** Number of cycles between checks of the wall clock. */
+	private static final int CHECK_INTERVAL = 1024;
+	
+	private final Cpu                cpu;
+	private final Cpu.BatchCallback  callback;
+	private final long               cyclesPerBatch;
+	private final long               nanosPerBatch;
+	
+	// One bit per memory address, and one per register id.
+	private final long[] dirtyMemory = new long[0x10000 / 64];
+	private int          dirtyRegisters;
+	
+	// Cycle count at which the Cpu should call check() next.
+	long nextCheck;
+	
+	private long lastBatchCycles;
+	private long lastBatchNanos;
+	
+	ChangeTracker(Cpu cpu, Cpu.BatchCallback callback, long cyclesPerBatch, long millisPerBatch) {
+		this.cpu            = cpu;
+		this.callback       = callback;
+		this.cyclesPerBatch = cyclesPerBatch > 0 ? cyclesPerBatch : Long.MAX_VALUE;
+		this.nanosPerBatch  = millisPerBatch > 0 ? millisPerBatch * 1000000 : Long.MAX_VALUE;
+		this.lastBatchNanos = System.nanoTime();
+		this.nextCheck      = Math.min(CHECK_INTERVAL, this.cyclesPerBatch);
+	}
+	
+	/**
+	 * Marks the given operand location as changed.
+	 */
+	void touched(int address) {
+		if (address < 0x10000)
+			dirtyMemory[address >>> 6] |= 1L << address;
+		else if (address < Cpu.LITERAL)
+			dirtyRegisters |= 1 << (address - 0x10000);
+	}
+	
+	/**
+	 * Sends a batch if one is due at the given cycle count, and schedules the
+	 * next check.
+	 */
+	void check(long cycleCount) {
+		nextCheck = cycleCount + Math.min(CHECK_INTERVAL, cyclesPerBatch);
+		
+		if (cycleCount - lastBatchCycles >= cyclesPerBatch
+				|| System.nanoTime() - lastBatchNanos >= nanosPerBatch) {
+			flush(cycleCount);
+		}
+	}
+	
+	/**
+	 * Sends the pending changes before reporting that the CPU halted.
+	 */
+	void halted(long cycleCount) {
+		flush(cycleCount);
+		long start = System.nanoTime();
+		callback.onHalt();
+		cpu.callbackNanos += System.nanoTime() - start;
+	}
+	
+	/**
+	 * Sends all pending changes as one batch.  PC and SP change on practically
+	 * every instruction, so they are always reported as changed.
+	 */
+	void flush(long cycleCount) {
+		short[] memory = cpu.memory;
+		
+		int count = 0;
+		for (long word : dirtyMemory)
+			count += Long.bitCount(word);
+		
+		int[]   addresses = new int[count];
+		short[] values    = new short[count];
+		
+		int n = 0;
+		for (int i=0; i<dirtyMemory.length; i++) {
+			long word = dirtyMemory[i];
+			while (word != 0) {
+				int address = (i << 6) + Long.numberOfTrailingZeros(word);
+				addresses[n] = address;
+				values[n]    = memory[address];
+				n++;
+				word &= word - 1;
+			}
+			dirtyMemory[i] = 0;
+		}
+		
+		short[] registers = new short[ChangeBatch.REGISTER_COUNT];
+		for (int id=0; id<registers.length; id++)
+			registers[id] = cpu.getRegister(id);
+		int changedRegisters = dirtyRegisters | 1 << (Cpu.PC - 0x10000) | 1 << (Cpu.SP - 0x10000);
+		dirtyRegisters = 0;
+		
+		lastBatchCycles = cycleCount;
+		lastBatchNanos  = System.nanoTime();
+		
+		callback.onBatch(new ChangeBatch(addresses, values, changedRegisters, registers, cycleCount));
+		cpu.callbackNanos += System.nanoTime() - lastBatchNanos;
+	}
+}
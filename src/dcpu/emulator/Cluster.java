@@ -0,0 +1,233 @@
+package dcpu.emulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+
+/**
+ * Several headless cores that share one region of memory, run in lockstep.
+ * Time is divided into quanta of a fixed number of cycles.  The result is
+ * always that of running the cores one after the other within each quantum,
+ * in order of their index, so runs are reproducible no matter how many host
+ * threads are used.
+ * 
+ * To get there in parallel, every quantum is first run on all cores at once,
+ * with each core writing shared memory into private copies of the pages it
+ * touches.  If no core wrote a shared page that another core read or wrote,
+ * none of them could have seen the others' writes in order either, and the
+ * copies are simply merged.  Otherwise the cores are rolled back to snapshots
+ * taken at the start of the quantum, and the quantum is run again one core at
+ * a time.  Conflicts are tracked per page of Device.PAGE_SIZE words.
+ * 
+ * The rest of each core's memory is private RAM of its own.  Instructions are
+ * only ever fetched from there, so shared memory can hold data but no code: a
+ * core halts at any instruction with a word in the shared region, leaving its
+ * PC one past the start of that instruction.
+ */
+public class Cluster {
+	private final Cpu[]        cores;
+	private final SharedView[] views;
+	private final short[]      shared;
+	private final int          sharedStart;
+	private final long         quantumCycles;
+	private final ForkJoinPool pool;
+	
+	private long parallelQuanta;
+	private long serialQuanta;
+	
+	/**
+	 * Creates a cluster of `coreCount` cores sharing `sharedLength` words from
+	 * `sharedStart` (both multiples of Device.PAGE_SIZE), and running quanta
+	 * of `quantumCycles` cycles on up to `parallelism` host threads.
+	 */
+	public Cluster(int coreCount, int sharedStart, int sharedLength, long quantumCycles, int parallelism) {
+		this.cores         = new Cpu[coreCount];
+		this.views         = new SharedView[coreCount];
+		this.shared        = new short[sharedLength];
+		this.sharedStart   = sharedStart;
+		this.quantumCycles = quantumCycles;
+		this.pool          = new ForkJoinPool(parallelism);
+		
+		for (int i=0; i<coreCount; i++) {
+			cores[i] = new Cpu(null);
+			views[i] = new SharedView();
+			cores[i].attach(views[i], sharedStart, sharedLength);
+			cores[i].forbidExecution(sharedStart, sharedLength);
+		}
+	}
+	
+	/**
+	 * Returns the core with the given index, e.g. to load its program.  The
+	 * core must only be run through the cluster.
+	 */
+	public Cpu getCore(int index) {
+		return cores[index];
+	}
+	
+	/**
+	 * Returns the shared memory, indexed from the start of the shared region.
+	 * It may be modified between runs.
+	 */
+	public short[] getSharedMemory() {
+		return shared;
+	}
+	
+	/** Number of quanta that ran in parallel so far. */
+	public long getParallelQuanta() {
+		return parallelQuanta;
+	}
+	
+	/** Number of quanta that had to be run again one core at a time. */
+	public long getSerialQuanta() {
+		return serialQuanta;
+	}
+	
+	/**
+	 * Runs the given number of quanta.  Halted cores sit out.
+	 */
+	public void run(long quanta) {
+		for (long q=0; q<quanta; q++) {
+			if (cores.length == 1 || !runParallel())
+				runSerial();
+		}
+	}
+	
+	/**
+	 * Stops the cluster's threads.  The cluster can't be used afterwards.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+	
+	/**
+	 * Runs a quantum on all cores at once.  Returns false, with every core
+	 * back where it started, if their accesses to shared memory conflicted.
+	 */
+	private boolean runParallel() {
+		Snapshot[] saved = new Snapshot[cores.length];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		
+		for (int i=0; i<cores.length; i++) {
+			saved[i] = cores[i].snapshot();
+			views[i].begin(false);
+			
+			final Cpu core = cores[i];
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					if (!core.isHalted())
+						core.runFor(quantumCycles);
+					return null;
+				}
+			});
+		}
+		pool.invokeAll(tasks);
+		
+		if (conflicts()) {
+			for (int i=0; i<cores.length; i++)
+				cores[i].restore(saved[i]);
+			return false;
+		}
+		
+		for (SharedView view : views)
+			view.commit();
+		parallelQuanta++;
+		return true;
+	}
+	
+	/**
+	 * Runs a quantum on one core after the other, straight on shared memory.
+	 */
+	private void runSerial() {
+		for (int i=0; i<cores.length; i++) {
+			views[i].begin(true);
+			if (!cores[i].isHalted())
+				cores[i].runFor(quantumCycles);
+		}
+		serialQuanta++;
+	}
+	
+	/**
+	 * Returns whether any core wrote a shared page that another core used.
+	 */
+	private boolean conflicts() {
+		for (int i=0; i<views.length; i++) {
+			for (int j=0; j<views.length; j++) {
+				if (i == j)
+					continue;
+				for (int w=0; w<views[i].writtenPages.length; w++) {
+					long used = views[j].readPages[w] | views[j].writtenPages[w];
+					if ((views[i].writtenPages[w] & used) != 0)
+						return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * One core's view of shared memory.  Keeps track of the pages the core
+	 * reads and writes, and when running in parallel, holds the core's writes
+	 * in private copies of those pages.
+	 */
+	private final class SharedView implements Device {
+		final long[] readPages    = new long[4];
+		final long[] writtenPages = new long[4];
+		
+		// Private copies of written pages by page index within the region, or
+		// null when writing straight to shared memory.
+		private short[][] copies;
+		
+		/**
+		 * Starts a quantum, either straight on shared memory or on copies.
+		 */
+		void begin(boolean direct) {
+			Arrays.fill(readPages, 0);
+			Arrays.fill(writtenPages, 0);
+			copies = direct ? null : new short[shared.length / PAGE_SIZE][];
+		}
+		
+		/**
+		 * Writes the private copies back to shared memory.
+		 */
+		void commit() {
+			for (int page=0; page<copies.length; page++) {
+				if (copies[page] != null)
+					System.arraycopy(copies[page], 0, shared, page * PAGE_SIZE, PAGE_SIZE);
+			}
+			copies = null;
+		}
+		
+		@Override
+		public short read(int address) {
+			readPages[address >>> 14] |= 1L << (address >>> 8);
+			
+			int offset = address - sharedStart;
+			if (copies != null) {
+				short[] copy = copies[offset / PAGE_SIZE];
+				if (copy != null)
+					return copy[offset % PAGE_SIZE];
+			}
+			return shared[offset];
+		}
+		
+		@Override
+		public void write(int address, short value) {
+			writtenPages[address >>> 14] |= 1L << (address >>> 8);
+			
+			int offset = address - sharedStart;
+			if (copies == null) {
+				shared[offset] = value;
+				return;
+			}
+			
+			int page = offset / PAGE_SIZE;
+			if (copies[page] == null)
+				copies[page] = Arrays.copyOfRange(shared, page * PAGE_SIZE, (page + 1) * PAGE_SIZE);
+			copies[page][offset % PAGE_SIZE] = value;
+		}
+	}
+}
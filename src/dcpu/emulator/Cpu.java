@@ -1,23 +1,173 @@
 package dcpu.emulator;
 
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
 public class Cpu {
-	public short[] memory = new short[0x10000 + 8 + 1 + 1 + 1 + 2];
-	private final int PC = 0x10000 + 8;
-	private final int SP = 0x10000 + 9;
-	private final int O = 0x10000 + 10;
-	private final int Lit = 0x10000 + 11;
-	private long cycleCount = 0;
+	public short[] memory = new short[0x10000];
+	
+	// The registers.  General-purpose registers are indexed by id.
+	final short[] registers = new short[8];
+	short pc, sp, o;
+	
+	// Device mapped at each page of memory, or null for plain RAM.
+	private final Device[] devices = new Device[0x10000 / Device.PAGE_SIZE];
+	
+	// Pages that instructions must not be fetched from, one bit each.
+	// Instructions there decode as halts (see forbidExecution()).
+	private final long[] unfetchablePages = new long[0x10000 / Device.PAGE_SIZE / 64];
+	
+	// Operand locations, as returned by getValue(): a memory address, 0x10000
+	// plus a register id, or LITERAL plus the value of a literal (which can't
+	// be written to).
+	static final int PC = 0x10000 + 8;
+	static final int SP = 0x10000 + 9;
+	static final int O = 0x10000 + 10;
+	static final int LITERAL = 0x20000;
+	long cycleCount = 0;
 	private MemoryCallback memCallback;
-	private boolean isRunning = false;
+	
+	// Collects changes for the batched callback mode, or null when changes
+	// are reported one by one through `memCallback`.
+	private ChangeTracker changes;
+	
+	// Decoded-instruction cache, indexed by address.  Each entry holds the
+	// instruction word in its lower 16 bits and the length of the instruction
+	// (in words) in the two bits above that; an entry of 0 means the address
+	// hasn't been decoded yet.  If the instruction and the one after it form a
+	// fused pair (see executeFused()), the FUSE_* bits describe the pair.
+	// Entries are dropped whenever the word at that address, or the first word
+	// of the following instruction, is written to, so self-modifying code
+	// still sees its own changes.
+	private final int[] decoded = new int[0x10000];
+	
+	// Kinds of fused pairs: IFx followed by SET PC; SET PUSH followed by JSR;
+	// and ADD or SUB followed by IFx on O.
+	private static final int FUSE_NONE = 0, FUSE_BRANCH = 1, FUSE_CALL = 2, FUSE_CARRY = 3;
+	
+	// Where the kind of pair, and the length, b operand and (for IFx, minus
+	// 0xc) opcode of the pair's second instruction are kept in a cache entry.
+	private static final int FUSE_KIND_SHIFT = 18, FUSE_LENGTH_SHIFT = 20,
+	                         FUSE_B_SHIFT = 22, FUSE_OPCODE_SHIFT = 28;
+	
+	// The snapshot that RAM was last saved to or restored from, and a bitmap
+	// of the pages written since then.  Pages not marked here are identical to
+	// the same page in `base`.
+	private Snapshot base;
+	private final long[] dirtyPages = new long[Snapshot.PAGE_COUNT / 64];
+	
+	// Mirror to publish RAM to, or null, and the pages of RAM written since it
+	// was last published.
+	private RamMirror mirror;
+	final long[] unpublishedPages = new long[Snapshot.PAGE_COUNT / 64];
+	
+	// Number of writes to RAM so far, to tell loops that only read apart.
+	// Device reads count too, as they may not give the same value twice.
+	private long writeCount;
+	
+	// Writes from other threads, as address << 16 | value, waiting to be
+	// applied on the thread running the CPU.
+	private final ConcurrentLinkedQueue<Long> postedWrites = new ConcurrentLinkedQueue<Long>();
+	
+	// Events to fire at given cycle counts.
+	private final EventQueue events = new EventQueue();
+	
+	// Registers at the start of findIdleLoop().
+	private final short[] idleRegisters = new short[8];
+	volatile boolean isRunning = false;
+	
+	// Target speed in cycles per second when running through start(), or 0 to
+	// run as fast as possible.  `runner` is the thread inside start(), if any.
+	private long clockRate = 0;
+	private volatile Thread runner;
+	private boolean isHalted = false;
+	
+	// Compiler for hot basic blocks, or null when running interpreted only.
+	private BlockCompiler compiler;
+	
+	// Records every executed instruction, or null when not tracing.  Read by
+	// blocks compiled while tracing.
+	TraceRecorder trace;
+	
+	// Counts executions and cycles per address, or null when not profiling.
+	private Profiler profiler;
+	
+	// Breakpoints and watchpoints to stop at, or null if there are none, and
+	// whether the next instruction is the first since start() or runFor(),
+	// which is never treated as a breakpoint.
+	private Breakpoints breakpoints;
+	private boolean resuming;
+	
+	// Counters behind the metrics, only ever written by the thread running the
+	// CPU: instructions executed (and of those, run as compiled blocks),
+	// decoded-instruction cache misses, and nanoseconds spent in the batch
+	// callback and in start() or runFor().  `metrics` is published to, if set.
+	long instructionCount, compiledCount, decodeCount, callbackNanos, runNanos;
+	private CpuMetrics metrics;
+	
+	// When the current run started, and the value of runNanos at the last
+	// reset and at the halt since then (or -1).
+	private long runStartNanos, resetRunNanos, haltRunNanos = -1;
+	
+	/** Ids of the special-purpose registers, as used by getRegister() and the
+	 *  callbacks.  The general-purpose registers A, B, C, X, Y, Z, I and J have
+	 *  ids 0 through 7. */
+	public static final int REG_PC = 8, REG_SP = 9, REG_O = 10;
+	
+	/** Clock rate of a real DCPU-16, in cycles per second. */
+	public static final long DEFAULT_CLOCK_RATE = 100000;
+	
+	// Length of the time slices that a CPU with a set clock rate runs in, and
+	// how far behind it may fall before it gives up on catching up.
+	private static final long SLICE_MILLIS   = 10;
+	private static final long MAX_LAG_MILLIS = 250;
+	
+	// Cycles between checks for idle loops (and between publishing metrics and
+	// applying posted writes), and the number of steps a loop may take to come
+	// back to where it started.
+	private static final long IDLE_CHECK_CYCLES = 0x10000;
+	private static final int  IDLE_PROBE_STEPS  = 32;
 	
 	public long getCycleCount() {
 		return cycleCount;
 	}
 	
+	/**
+	 * Returns the value of the register with the given id.
+	 */
+	public short getRegister(int id) {
+		return load(0x10000 + id);
+	}
+	
+	/**
+	 * Returns whether the CPU has executed a halt instruction since its
+	 * registers were last reset.
+	 */
+	public boolean isHalted() {
+		return isHalted;
+	}
+	
+	/**
+	 * Creates a CPU that reports every change to memory, registers and the
+	 * cycle count through the given callback as soon as it happens.  The
+	 * callback may be null, for running headless.
+	 */
 	public Cpu(MemoryCallback callback) {
 		memCallback = callback;
 	}
 	
+	/**
+	 * Creates a CPU that collects changes and reports them through the given
+	 * callback in batches: once at least `cyclesPerBatch` cycles or
+	 * `millisPerBatch` milliseconds have passed since the last batch, whichever
+	 * comes first.  Either interval may be 0 to disable it.  Pending changes
+	 * are also reported when the CPU stops or halts.
+	 */
+	public Cpu(BatchCallback callback, long cyclesPerBatch, long millisPerBatch) {
+		changes = new ChangeTracker(this, callback, cyclesPerBatch, millisPerBatch);
+	}
+	
 	public static interface MemoryCallback {
 		public void onMemoryChange(int address, short value);
 		public void onRegisterChange(int id, short value);
@@ -25,7 +175,240 @@ public class Cpu {
 		public void onHalt();
 	}
 	
-	private int getValue(short code, int op) {
+	public static interface Event {
+		/**
+		 * Called on the thread running the CPU, at the first instruction
+		 * boundary at or after the cycle the event was scheduled for.
+		 */
+		public void fire(long cycle);
+	}
+	
+	public static interface BatchCallback {
+		/**
+		 * Called with all changes since the previous batch.  The batch is a
+		 * copy, so it may be handed to another thread.
+		 */
+		public void onBatch(ChangeBatch batch);
+		public void onHalt();
+	}
+	
+	/**
+	 * Returns the length (in words) that an operand with the given code adds to
+	 * an instruction, i.e. whether it consumes a "next word".
+	 */
+	static int operandLength(int code) {
+		if ((code >= 0x10 && code <= 0x17) || code == 0x1e || code == 0x1f)
+			return 1;
+		return 0;
+	}
+	
+	/**
+	 * Decodes the instruction at the given address and stores it in the
+	 * decoded-instruction cache.
+	 */
+	private int decode(int address) {
+		int instruction = memory[address] & 0xffff;
+		int length      = instructionLength(instruction);
+		int next        = memory[(address + length) & 0xffff] & 0xffff;
+		
+		decodeCount++;
+		if (!fetchable(address, length))
+			return decoded[address] = length << 16;
+		if (!fetchable(address + length, instructionLength(next)))
+			return decoded[address] = instruction | (length << 16);
+		return decoded[address] = instruction | (length << 16) | fusion(instruction, next);
+	}
+	
+	/**
+	 * Returns whether all `length` words from the given address may be
+	 * fetched as an instruction.
+	 */
+	private boolean fetchable(int address, int length) {
+		for (int i=0; i<length; i++) {
+			int word = (address + i) & 0xffff;
+			if ((unfetchablePages[word >>> 14] & 1L << (word >>> 8)) != 0)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the FUSE_* bits of a cache entry for the given instruction, when
+	 * followed by the given next instruction; 0 if they don't form a pair.
+	 */
+	private static int fusion(int first, int second) {
+		int opcode = first & 0xf;
+		int a = (first >>> 4) & 0x3f;
+		int nextOpcode = second & 0xf;
+		int nextA = (second >>> 4) & 0x3f;
+		int nextB = (second >>> 10) & 0x3f;
+		
+		int kind;
+		if (opcode >= 0xc && nextOpcode == 0x1 && nextA == 0x1c)
+			kind = FUSE_BRANCH;
+		else if (opcode == 0x1 && a == 0x1a && nextOpcode == 0 && nextA == 0x01)
+			kind = FUSE_CALL;
+		else if ((opcode == 0x2 || opcode == 0x3) && a != 0x1c && nextOpcode >= 0xc && nextA == 0x1d)
+			kind = FUSE_CARRY;
+		else
+			return 0;
+		
+		return kind << FUSE_KIND_SHIFT
+		     | instructionLength(second) << FUSE_LENGTH_SHIFT
+		     | nextB << FUSE_B_SHIFT
+		     | (nextOpcode & 0x3) << FUSE_OPCODE_SHIFT;
+	}
+	
+	/**
+	 * Returns the length (in words) of the given instruction word, including
+	 * the "next word"s of its operands.
+	 */
+	static int instructionLength(int instruction) {
+		int opcode = instruction & 0xf;
+		int a = (instruction >>> 4) & 0x3f;
+		int b = (instruction >>> 10) & 0x3f;
+		
+		int length = 1 + operandLength(b); //b is called a in the specification if opcode == 0
+		if (opcode != 0)
+			length += operandLength(a);
+		
+		return length;
+	}
+	
+	/**
+	 * Returns the decoded instruction at the given address, in the format used
+	 * by the decoded-instruction cache.
+	 */
+	int decodedAt(int address) {
+		int insn = decoded[address];
+		return insn != 0 ? insn : decode(address);
+	}
+	
+	/**
+	 * Drops the cached decoding of the instruction at the given location, if it
+	 * is a memory address, along with any compiled code covering it.  Must be
+	 * called whenever RAM is modified.
+	 */
+	void invalidate(int address) {
+		if (address < 0x10000) {
+			writeCount++;
+			dirtyPages[address >>> 14] |= 1L << (address >>> 8);
+			unpublishedPages[address >>> 14] |= 1L << (address >>> 8);
+			decoded[address] = 0;
+			// Any of the three words before may start a pair ending here.
+			decoded[(address - 1) & 0xffff] = 0;
+			decoded[(address - 2) & 0xffff] = 0;
+			decoded[(address - 3) & 0xffff] = 0;
+			if (compiler != null)
+				compiler.invalidate(address);
+		}
+	}
+	
+	/**
+	 * Drops all cached instruction decodings and compiled blocks, and forgets
+	 * which memory is unchanged since the last snapshot.  Must be called after
+	 * modifying `memory` directly from outside the CPU.
+	 */
+	public void flushDecodeCache() {
+		Arrays.fill(decoded, 0);
+		if (compiler != null)
+			compiler.flush();
+		base = null;
+		Arrays.fill(unpublishedPages, -1L);
+	}
+	
+	/**
+	 * Enables or disables compilation of hot basic blocks.  While enabled,
+	 * start() runs frequently executed straight-line code through compiled
+	 * blocks instead of interpreting it one instruction at a time; the
+	 * resulting state is identical to what executeNext() produces.
+	 */
+	public void setCompilerEnabled(boolean enabled) {
+		if (enabled && compiler == null)
+			compiler = new BlockCompiler(this);
+		else if (!enabled)
+			compiler = null;
+	}
+	
+	/**
+	 * Starts recording every executed instruction to the given recorder, which
+	 * first saves the current machine state; or stops recording if given null.
+	 * Recording runs through fused pairs and compiled blocks like any other
+	 * run, but skips no idle loops.  The recorder is not closed when
+	 * recording stops.
+	 */
+	public void setTraceRecorder(TraceRecorder recorder) {
+		if (recorder != null)
+			recorder.begin(this);
+		trace = recorder;
+		// Blocks compiled while recording record, and the others don't.
+		if (compiler != null)
+			compiler.flush();
+	}
+	
+	/**
+	 * Starts counting executed instructions and cycles in the given profiler,
+	 * or stops if given null.  While profiling, compiled blocks aren't used.
+	 */
+	public void setProfiler(Profiler profiler) {
+		this.profiler = profiler;
+	}
+	
+	/**
+	 * Maps the given device into memory, from `address` and for `length`
+	 * words, both multiples of Device.PAGE_SIZE.  Any device already mapped
+	 * there is replaced.  Pages without a device are plain RAM, which
+	 * instructions access directly.  Must not be called while the CPU is
+	 * running.
+	 */
+	public void attach(Device device, int address, int length) {
+		if (address % Device.PAGE_SIZE != 0 || length % Device.PAGE_SIZE != 0
+				|| address < 0 || length < 0 || address + length > 0x10000) {
+			throw new IllegalArgumentException("Devices must be mapped in whole pages.");
+		}
+		
+		for (int page=address / Device.PAGE_SIZE; page<(address + length) / Device.PAGE_SIZE; page++)
+			devices[page] = device;
+	}
+	
+	/**
+	 * Makes the CPU halt at any instruction that has a word in the given
+	 * region, rather than execute it from the RAM underneath a device mapped
+	 * there.  The region is in whole pages, like for attach().  Must not be
+	 * called while the CPU is running.
+	 */
+	void forbidExecution(int address, int length) {
+		for (int page=address / Device.PAGE_SIZE; page<(address + length) / Device.PAGE_SIZE; page++)
+			unfetchablePages[page >>> 6] |= 1L << page;
+		flushDecodeCache();
+	}
+	
+	/**
+	 * Unmaps the given device from all pages it is mapped at, which become
+	 * plain RAM again.  Must not be called while the CPU is running.
+	 */
+	public void detach(Device device) {
+		for (int page=0; page<devices.length; page++) {
+			if (devices[page] == device)
+				devices[page] = null;
+		}
+	}
+	
+	/**
+	 * Sets the breakpoints and watchpoints that start() and runFor() stop at,
+	 * or removes them if given null.  While any are set, the CPU runs through
+	 * a separate, slower loop that checks them; without them, running costs
+	 * nothing extra.  Single-stepping with executeNext() ignores them.
+	 */
+	public void setBreakpoints(Breakpoints breakpoints) {
+		this.breakpoints = breakpoints;
+	}
+	
+	void addCycles(int cycles) {
+		cycleCount += cycles;
+	}
+	
+	private int getValue(int code) {
 		switch(code) {
 			case 0x00:
 			case 0x01:
@@ -44,7 +427,7 @@ public class Cpu {
 			case 0x0d:
 			case 0x0e:
 			case 0x0f:
-				return memory[0x10000 + code - 0x08] & 0xffff;
+				return registers[code - 0x08] & 0xffff;
 			case 0x10:
 			case 0x11:
 			case 0x12:
@@ -54,13 +437,13 @@ public class Cpu {
 			case 0x16:
 			case 0x17:
 				cycleCount++;
-				return (memory[memory[PC]++ & 0xffff] + memory[0x10000 + code - 0x10]) & 0xffff;
+				return (memory[pc++ & 0xffff] + registers[code - 0x10]) & 0xffff;
 			case 0x18:
-				return memory[SP]++ & 0xffff;
+				return sp++ & 0xffff;
 			case 0x19:
-				return memory[SP] & 0xffff;
+				return sp & 0xffff;
 			case 0x1a:
-				return --memory[SP] & 0xffff;
+				return --sp & 0xffff;
 			case 0x1b:
 				return SP;
 			case 0x1c:
@@ -69,223 +452,520 @@ public class Cpu {
 				return O;
 			case 0x1e:
 				cycleCount++;
-				return memory[memory[PC]++ & 0xffff] & 0xffff;
+				return memory[pc++ & 0xffff] & 0xffff;
 			case 0x1f:
 				cycleCount++;
-				memory[Lit + op] = memory[memory[PC]++ & 0xffff];
-				return Lit + op;
+				return LITERAL | (memory[pc++ & 0xffff] & 0xffff);
 			default:
-				memory[Lit + op] = (short)(code - 0x20);
-				return Lit + op;
+				return LITERAL | (code - 0x20);
 		}
 	}
-	private void skipValue(short code){
-		switch(code) {
-			case 0x10:
-			case 0x11:
-			case 0x12:
-			case 0x13:
-			case 0x14:
-			case 0x15:
-			case 0x16:
-			case 0x17:
-			case 0x1e:
-			case 0x1f:
-				memory[PC]++;
+	
+	/**
+	 * Returns the value at the given operand location.
+	 */
+	short load(int location) {
+		if (location < 0x10000) {
+			Device device = devices[location >>> 8];
+			if (device == null)
+				return memory[location];
+			writeCount++;
+			return device.read(location);
 		}
+		if (location < PC)
+			return registers[location - 0x10000];
+		if (location == PC)
+			return pc;
+		if (location == SP)
+			return sp;
+		if (location == O)
+			return o;
+		return (short)location;
 	}
-
-	private void skipNext() {
-		short instruction = memory[memory[PC]++ & 0xffff];
-		short opcode = (short)(instruction & 0xf);
-		short a = (short)((instruction >>> 4) & 0x3f);
-		short b = (short)((instruction >>> 10) & 0x3f);
+	
+	/**
+	 * Returns the value at the given operand location like load(), but reads
+	 * RAM even where a device is mapped, so that the device isn't disturbed.
+	 */
+	short peek(int location) {
+		return location < 0x10000 ? memory[location] : load(location);
+	}
+	
+	/**
+	 * Stores a value to the given operand location.  Stores to literals are
+	 * ignored.
+	 */
+	void store(int location, short value) {
+		if (location < 0x10000) {
+			Device device = devices[location >>> 8];
+			if (device == null)
+				memory[location] = value;
+			else
+				device.write(location, value);
+		} else if (location < PC)
+			registers[location - 0x10000] = value;
+		else if (location == PC)
+			pc = value;
+		else if (location == SP)
+			sp = value;
+		else if (location == O)
+			o = value;
+	}
+	
+	void skipNext() {
+		int address = pc & 0xffff;
+		int insn = decoded[address];
+		if (insn == 0)
+			insn = decode(address);
 		
 		cycleCount++;
-		
-		if (opcode != 0)
-			skipValue(a);
-		skipValue(b); //b is called a in the specification (aaaaaaoooooo0000) if opcode == 0
+		pc += (insn >>> 16) & 3;
 	}
 	
 	public void executeNext() {
-		short instruction = memory[memory[PC]++ & 0xffff];
-		short opcode = (short)(instruction & 0xf);
-		short a = (short)((instruction >>> 4) & 0x3f);
-		short b = (short)((instruction >>> 10) & 0x3f);
+		int address = pc & 0xffff;
+		int insn = decoded[address];
+		if (insn == 0)
+			insn = decode(address);
+		
+		execute(address, insn);
+	}
+	
+	/**
+	 * Executes the given decoded instruction, found at the given address.
+	 */
+	private void execute(int address, int insn) {
+		long startCycles = cycleCount;
+		pc++;
+		
+		int opcode = insn & 0xf;
+		int a = (insn >>> 4) & 0x3f;
+		int b = (insn >>> 10) & 0x3f;
+		int dst = -1, src = -1;
 		
 		if (opcode == 0) {
 			if (a == 0x01){
 				//JSR
 				cycleCount += 2;
-				short next = memory[getValue(b, 0)]; //b here is called a in the specification
-				memory[--memory[SP] & 0xffff] = memory[PC];
-				memory[PC] = next;
-				
-				memoryTouched(memory[SP] & 0xffff);
+				src = getValue(b); //b here is called a in the specification
+				jsr(load(src));
+				dst = sp & 0xffff;
 			} else {
 				//throw new UnsupportedOperationException();
 				//Halt
+				if (isRunning)
+					haltRunNanos = runNanos + System.nanoTime() - runStartNanos - resetRunNanos;
 				isRunning = false;
-				memCallback.onHalt();
+				isHalted = true;
+				if (changes != null)
+					changes.halted(cycleCount);
+				else if (memCallback != null)
+					memCallback.onHalt();
 			}
 		} else {
-			int dst = getValue(a, 0);
-			int src = getValue(b, 1);
-			switch(opcode) {
-				//SET
-				case 0x1: {
+			dst = getValue(a);
+			src = getValue(b);
+			execute(opcode, dst, src);
+		}
+		if (trace != null)
+			trace.record(address, insn, dst, src);
+		if (profiler != null)
+			profiler.record(address, insn, cycleCount - startCycles);
+		if (breakpoints != null)
+			breakpoints.accessed(opcode, dst, src);
+		instructionDone();
+	}
+	
+	/**
+	 * Executes the next instruction like executeNext(), or the next two if they
+	 * form a fused pair: a conditional jump (IFx followed by SET PC), a call
+	 * with an argument (SET PUSH followed by JSR) or an overflow test (ADD or
+	 * SUB followed by IFx on O).  A pair runs without dispatching or decoding
+	 * its second instruction, but otherwise exactly like two executeNext()
+	 * calls, down to the cycle count and callbacks.  Returns the number of
+	 * instructions executed.
+	 * 
+	 * Like the run loop would between two instructions, a pair stops after its
+	 * first instruction once that reaches the cycle `limit`.
+	 * 
+	 * Reports both instructions of a pair to the trace recorder, but doesn't
+	 * report to the profiler or breakpoints, so must only be used when neither
+	 * of them is set.
+	 */
+	int executeFused(long limit) {
+		int address = pc & 0xffff;
+		int insn = decoded[address];
+		if (insn == 0)
+			insn = decode(address);
+		
+		// The first instruction of a pair takes a cycle per operand word, plus
+		// one for a SET and two for the rest.
+		int kind = (insn >>> FUSE_KIND_SHIFT) & 0x3;
+		int firstCycles = ((insn >>> 16) & 3) + (kind == FUSE_CALL ? 0 : 1);
+		if (kind == FUSE_NONE || cycleCount + firstCycles >= limit) {
+			execute(address, insn);
+			return 1;
+		}
+		pc++;
+		
+		int opcode = insn & 0xf;
+		int a = (insn >>> 4) & 0x3f;
+		int b = (insn >>> 10) & 0x3f;
+		int next = address + ((insn >>> 16) & 3);
+		int nextLength = (insn >>> FUSE_LENGTH_SHIFT) & 0x3;
+		int nextB = (insn >>> FUSE_B_SHIFT) & 0x3f;
+		int nextOpcode = 0xc | ((insn >>> FUSE_OPCODE_SHIFT) & 0x3);
+		
+		int dst = getValue(a);
+		int src = getValue(b);
+		
+		switch (kind) {
+			//IFx, SET PC
+			case FUSE_BRANCH: {
+				cycleCount += 2;
+				boolean taken = condition(opcode, load(dst), load(src));
+				if (!taken) {
 					cycleCount++;
-					memory[dst] = memory[src];
-					break;
-				}
-				//ADD
-				case 0x2: {
-					cycleCount += 2;
-					int res = (memory[dst] & 0xffff) + (memory[src] & 0xffff);
-					memory[dst] = (short)(res);
-					memory[O] = (short)(res > 0xffff ? 0x0001 : 0x0000);
-					break;
+					pc += nextLength;
 				}
-				//SUB
-				case 0x3: {
-					cycleCount += 2;
-					int res = (memory[dst] & 0xffff) - (memory[src] & 0xffff);
-					memory[dst] = (short)(res);
-					memory[O] = (short)(res < 0 ? 0xffff : 0x0000);
-					break;
-				}
-				//MUL
-				case 0x4: {
-					cycleCount += 2;
-					int res = (memory[dst] & 0xffff) * (memory[src] & 0xffff);
-					memory[dst] = (short)res;
-					memory[O] = (short)(res >>> 16);
-					break;
-				}
-				//DIV
-				case 0x5: {
-					cycleCount += 3;
-					if (memory[src] == 0){
-						memory[dst] = 0;
-						memory[O] = 0;
-					} else {
-						int res = (memory[dst] & 0xffff) / (memory[src] & 0xffff);
-						short o = (short)(((long)(memory[dst] & 0xffff) << 16) / (memory[src] & 0xffff));
-						memory[dst] = (short)res;
-						memory[O] = o;
-					}
-					break;
-				}
-				//MOD
-				case 0x6: {
-					cycleCount += 3;
-					if (memory[src] == 0){
-						memory[dst] = 0;
-					}  else {
-						memory[dst] = (short)((memory[dst] & 0xffff) % (memory[src] & 0xffff));
-					}
-					break;
-				}
-				//SHL
-				case 0x7: {
-					cycleCount += 2;
-					if ((memory[src] & 0xffff) >= 32){
-						memory[dst] = 0;
-						memory[O] = 0;
-					} else {
-						int res = (memory[dst] & 0xffff) << (memory[src] & 0xffff);
-						memory[dst] = (short)res;
-						memory[O] = (short)(res >>> 16);
-					}
-					break;
-				}
-				//SHR
-				case 0x8: {
-					cycleCount += 2;
-					if ((memory[src] & 0xffff) >= 32){
-						memory[dst] = 0;
-						memory[O] = 0;
-					} else {
-						int res = (memory[dst] & 0xffff) >>> (memory[src] & 0xffff);
-						short o = (short)((memory[dst] << 16) >>> (memory[src] & 0xffff));
-						memory[dst] = (short)res;
-						memory[O] = o;
-					}
-					break;
+				memoryTouched(dst);
+				if (trace != null)
+					trace.record(address, insn, dst, src);
+				instructionDone();
+				if (!taken)
+					return 1;
+				
+				pc++;
+				src = getValue(nextB);
+				cycleCount++;
+				pc = load(src);
+				memoryTouched(PC);
+				if (trace != null)
+					trace.record(next, 0x1 | nextLength << 16, PC, src);
+				break;
+			}
+			//SET PUSH, JSR
+			case FUSE_CALL: {
+				execute(opcode, dst, src);
+				if (trace != null)
+					trace.record(address, insn, dst, src);
+				instructionDone();
+				// The push may have overwritten the JSR.
+				if (decoded[address] != insn)
+					return 1;
+				
+				pc++;
+				cycleCount += 2;
+				src = getValue(nextB);
+				jsr(load(src));
+				if (trace != null)
+					trace.record(next, 0x10 | nextLength << 16, sp & 0xffff, src);
+				break;
+			}
+			//ADD/SUB, IFx O
+			case FUSE_CARRY: {
+				execute(opcode, dst, src);
+				if (trace != null)
+					trace.record(address, insn, dst, src);
+				instructionDone();
+				// The result may have overwritten the IFx.
+				if (decoded[address] != insn)
+					return 1;
+				
+				pc++;
+				src = getValue(nextB);
+				cycleCount += 2;
+				if (!condition(nextOpcode, o, load(src)))
+					skipNext();
+				memoryTouched(O);
+				if (trace != null)
+					trace.record(next, nextOpcode | nextLength << 16, O, src);
+				break;
+			}
+		}
+		instructionDone();
+		return 2;
+	}
+	
+	/**
+	 * Returns whether the condition of the IFx instruction with the given
+	 * opcode holds for the given operand values.
+	 */
+	private static boolean condition(int opcode, short a, short b) {
+		switch (opcode) {
+			case 0xc: return a == b;
+			case 0xd: return a != b;
+			case 0xe: return a > b;
+			default:  return (a & b) != 0;
+		}
+	}
+	
+	/**
+	 * Pushes PC and jumps to the given address.  The cost of the JSR itself must
+	 * already have been added to the cycle count.
+	 */
+	void jsr(short next) {
+		int address = --sp & 0xffff;
+		store(address, pc);
+		pc = next;
+		invalidate(address);
+		
+		memoryTouched(address);
+	}
+	
+	/**
+	 * Performs the basic operation with the given opcode on the already
+	 * resolved operand locations, and accounts for its cycles.
+	 */
+	void execute(int opcode, int dst, int src) {
+		switch(opcode) {
+			//SET
+			case 0x1: {
+				cycleCount++;
+				store(dst, load(src));
+				break;
+			}
+			//ADD
+			case 0x2: {
+				cycleCount += 2;
+				int res = (load(dst) & 0xffff) + (load(src) & 0xffff);
+				store(dst, (short)res);
+				o = (short)(res > 0xffff ? 0x0001 : 0x0000);
+				break;
+			}
+			//SUB
+			case 0x3: {
+				cycleCount += 2;
+				int res = (load(dst) & 0xffff) - (load(src) & 0xffff);
+				store(dst, (short)res);
+				o = (short)(res < 0 ? 0xffff : 0x0000);
+				break;
+			}
+			//MUL
+			case 0x4: {
+				cycleCount += 2;
+				int res = (load(dst) & 0xffff) * (load(src) & 0xffff);
+				store(dst, (short)res);
+				o = (short)(res >>> 16);
+				break;
+			}
+			//DIV
+			case 0x5: {
+				cycleCount += 3;
+				int divisor = load(src) & 0xffff;
+				if (divisor == 0){
+					store(dst, (short)0);
+					o = 0;
+				} else {
+					int value = load(dst) & 0xffff;
+					store(dst, (short)(value / divisor));
+					o = (short)(((long)value << 16) / divisor);
 				}
-				//AND
-				case 0x9: {
-					cycleCount++;
-					memory[dst] &= memory[src];
-					break;
+				break;
+			}
+			//MOD
+			case 0x6: {
+				cycleCount += 3;
+				int divisor = load(src) & 0xffff;
+				if (divisor == 0){
+					store(dst, (short)0);
+				}  else {
+					store(dst, (short)((load(dst) & 0xffff) % divisor));
 				}
-				//BOR
-				case 0xa: {
-					cycleCount++;
-					memory[dst] |= memory[src];
-					break;
+				break;
+			}
+			//SHL
+			case 0x7: {
+				cycleCount += 2;
+				int shift = load(src) & 0xffff;
+				if (shift >= 32){
+					store(dst, (short)0);
+					o = 0;
+				} else {
+					int res = (load(dst) & 0xffff) << shift;
+					store(dst, (short)res);
+					o = (short)(res >>> 16);
 				}
-				//XOR
-				case 0xb: {
-					cycleCount++;
-					memory[dst] ^= memory[src];
-					break;
+				break;
+			}
+			//SHR
+			case 0x8: {
+				cycleCount += 2;
+				int shift = load(src) & 0xffff;
+				if (shift >= 32){
+					store(dst, (short)0);
+					o = 0;
+				} else {
+					short value = load(dst);
+					store(dst, (short)((value & 0xffff) >>> shift));
+					o = (short)((value << 16) >>> shift);
 				}
-				//IFE:
-				case 0xc: {
-					cycleCount += 2;
-					if (memory[dst] != memory[src]){
-						skipNext();
-					}
-					break;
+				break;
+			}
+			//AND
+			case 0x9: {
+				cycleCount++;
+				store(dst, (short)(load(dst) & load(src)));
+				break;
+			}
+			//BOR
+			case 0xa: {
+				cycleCount++;
+				store(dst, (short)(load(dst) | load(src)));
+				break;
+			}
+			//XOR
+			case 0xb: {
+				cycleCount++;
+				store(dst, (short)(load(dst) ^ load(src)));
+				break;
+			}
+			//IFE:
+			case 0xc: {
+				cycleCount += 2;
+				if (load(dst) != load(src)){
+					skipNext();
 				}
-				//IFN:
-				case 0xd: {
-					cycleCount += 2;
-					if (memory[dst] == memory[src]){
-						skipNext();
-					}
-					break;
+				break;
+			}
+			//IFN:
+			case 0xd: {
+				cycleCount += 2;
+				if (load(dst) == load(src)){
+					skipNext();
 				}
-				//IFG:
-				case 0xe: {
-					cycleCount += 2;
-					if (memory[dst] <= memory[src]){
-						skipNext();
-					}
-					break;
+				break;
+			}
+			//IFG:
+			case 0xe: {
+				cycleCount += 2;
+				if (load(dst) <= load(src)){
+					skipNext();
 				}
-				//IFB:
-				case 0xf: {
-					cycleCount += 2;
-					if ((memory[dst] & memory[src]) == 0){
-						skipNext();
-					}
-					break;
+				break;
+			}
+			//IFB:
+			case 0xf: {
+				cycleCount += 2;
+				if ((load(dst) & load(src)) == 0){
+					skipNext();
 				}
+				break;
 			}
-			memoryTouched(dst);
 		}
+		if (opcode < 0xc)
+			invalidate(dst);
+		memoryTouched(dst);
+	}
+	
+	/**
+	 * Reports the registers and cycle count that every instruction touches.
+	 */
+	void instructionDone() {
+		instructionCount++;
+		if (changes != null) {
+			if (cycleCount >= changes.nextCheck)
+				changes.check(cycleCount);
+			return;
+		}
+		if (memCallback == null)
+			return;
 		memoryTouched(PC);
 		memoryTouched(SP);
 		memCallback.onCyclesChange(cycleCount);
 	}
 	
-	private void memoryTouched(int address) {
-		if (address < 65536)
+	void memoryTouched(int address) {
+		if (changes != null)
+			changes.touched(address);
+		else if (memCallback == null)
+			return;
+		else if (address < 65536)
 			memCallback.onMemoryChange(address, memory[address]);
-		else if (address < 65536 + 8 + 1 + 1 + 1) {
-			memCallback.onRegisterChange(address - 65536, memory[address]);
+		else if (address < LITERAL) {
+			memCallback.onRegisterChange(address - 65536, load(address));
+		}
+	}
+	
+	/**
+	 * Saves the whole machine state.  Pages of RAM that haven't been written
+	 * since the previous snapshot (or restore) are shared with it rather than
+	 * copied, so taking a snapshot costs little more than the pages that
+	 * changed.
+	 */
+	public Snapshot snapshot() {
+		short[][] pages = new short[Snapshot.PAGE_COUNT][];
+		
+		for (int page=0; page<Snapshot.PAGE_COUNT; page++) {
+			if (base != null && !isPageDirty(page)) {
+				pages[page] = base.pages[page];
+			} else {
+				int start = page * Snapshot.PAGE_SIZE;
+				pages[page] = Arrays.copyOfRange(memory, start, start + Snapshot.PAGE_SIZE);
+			}
 		}
+		
+		short[] registers = new short[ChangeBatch.REGISTER_COUNT];
+		for (int id=0; id<registers.length; id++)
+			registers[id] = getRegister(id);
+		
+		base = new Snapshot(pages, registers, cycleCount, isHalted);
+		Arrays.fill(dirtyPages, 0);
+		
+		return base;
+	}
+	
+	/**
+	 * Returns the machine to the state saved in the given snapshot.  Only the
+	 * pages that differ from it are copied: usually just those written since
+	 * the snapshot was taken or last restored.  Must not be called while the
+	 * CPU is running.
+	 */
+	public void restore(Snapshot snapshot) {
+		for (int page=0; page<Snapshot.PAGE_COUNT; page++) {
+			if (base != null && !isPageDirty(page) && base.pages[page] == snapshot.pages[page])
+				continue;
+			
+			int start = page * Snapshot.PAGE_SIZE;
+			System.arraycopy(snapshot.pages[page], 0, memory, start, Snapshot.PAGE_SIZE);
+			
+			for (int address=start; address<start + Snapshot.PAGE_SIZE; address++) {
+				invalidate(address);
+				memoryTouched(address);
+			}
+		}
+		
+		for (int i=0; i<ChangeBatch.REGISTER_COUNT; i++) {
+			store(0x10000 + i, snapshot.registers[i]);
+			memoryTouched(0x10000 + i);
+		}
+		
+		cycleCount = snapshot.cycleCount;
+		isHalted   = snapshot.isHalted;
+		
+		base = snapshot;
+		Arrays.fill(dirtyPages, 0);
+		
+		if (memCallback != null)
+			memCallback.onCyclesChange(cycleCount);
+		flushChanges();
+	}
+	
+	private boolean isPageDirty(int page) {
+		return (dirtyPages[page >>> 6] & (1L << page)) != 0;
 	}
 	
 	public void initMem(short[] mem) {
+		flushDecodeCache();
+		
 		for(int i=0; i<mem.length; i++)
 			memory[i] = mem[i];
 		
 		for(int i=mem.length; i<memory.length; i++)
 			memory[i] = 0;
+		
+		for(int i=0; i<ChangeBatch.REGISTER_COUNT; i++)
+			store(0x10000 + i, (short)0);
 	}
 	
 	public static void main(String[] args){
@@ -325,22 +1005,401 @@ public class Cpu {
 	
 	public void resetRegisters() {
 		cycleCount = 0;
-		memCallback.onCyclesChange(0);
-		for(int i=0; i<11; i++){
-			memory[0x10000 + i] = 0;
+		isHalted = false;
+		resetRunNanos = runNanos;
+		haltRunNanos = -1;
+		if (memCallback != null)
+			memCallback.onCyclesChange(0);
+		for(int i=0; i<ChangeBatch.REGISTER_COUNT; i++){
+			store(0x10000 + i, (short)0);
 			memoryTouched(0x10000 + i);
 		}
+		flushChanges();
+	}
+	
+	/**
+	 * Reports all pending changes right away, when running in batched mode,
+	 * and publishes to the RAM mirror, if any.  Useful after single-stepping
+	 * with executeNext().
+	 */
+	public void flushChanges() {
+		if (changes != null)
+			changes.flush(cycleCount);
+		if (mirror != null)
+			mirror.publish();
+		if (metrics != null)
+			metrics.publish(this);
+	}
+	
+	/**
+	 * Sets the metrics that the CPU publishes its counters to, or null.
+	 */
+	void setMetrics(CpuMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Returns the wall-clock time spent running through start() or runFor()
+	 * from the last reset of the registers until the CPU halted, or -1 if it
+	 * hasn't halted (while running).
+	 */
+	long getTimeToHaltNanos() {
+		return haltRunNanos;
+	}
+	
+	/**
+	 * Returns the total wall-clock time spent in start() and runFor(),
+	 * including the current run.
+	 */
+	long getRunNanos() {
+		return isRunning ? runNanos + System.nanoTime() - runStartNanos : runNanos;
+	}
+	
+	/**
+	 * Sets the mirror that flushChanges() publishes to, or null for none.
+	 */
+	void setMirror(RamMirror mirror) {
+		this.mirror = mirror;
+		Arrays.fill(unpublishedPages, -1L);
 	}
 	
 	public void stop() {
 		isRunning = false;
+		
+		Thread runner = this.runner;
+		if (runner != null)
+			LockSupport.unpark(runner);
 	}
-
+	
+	/**
+	 * Writes a word of RAM from another thread, e.g. for input.  The write is
+	 * applied by the thread running the CPU, before it next runs or at the
+	 * latest IDLE_CHECK_CYCLES cycles later, and wakes it up if it is parked
+	 * in an idle loop.
+	 */
+	public void postWrite(int address, short value) {
+		postedWrites.add((long)address << 16 | (value & 0xffff));
+		
+		Thread runner = this.runner;
+		if (runner != null)
+			LockSupport.unpark(runner);
+	}
+	
+	/**
+	 * Writes a word of RAM from the thread running the CPU, e.g. from an event
+	 * or a device.
+	 */
+	public void writeMemory(int address, short value) {
+		memory[address] = value;
+		invalidate(address);
+		memoryTouched(address);
+		if (trace != null)
+			trace.written(address, value);
+	}
+	
+	/**
+	 * Schedules the given event to fire once the cycle count reaches `cycle`.
+	 * Events only fire while running through start() or runFor(), and aren't
+	 * part of snapshots.  Must be called on the thread running the CPU, e.g.
+	 * from an event to schedule the next one, or while it isn't running.
+	 */
+	public void schedule(long cycle, Event event) {
+		events.add(cycle, event);
+	}
+	
+	/**
+	 * Cancels every pending firing of the given event.  Must be called like
+	 * schedule().
+	 */
+	public void cancel(Event event) {
+		events.remove(event);
+	}
+	
+	/**
+	 * Fires all events that are due by now.
+	 */
+	private void fireEvents() {
+		while (events.nextCycle <= cycleCount) {
+			long cycle = events.nextCycle;
+			events.poll().fire(cycle);
+		}
+	}
+	
+	private void applyPostedWrites() {
+		Long write;
+		while ((write = postedWrites.poll()) != null)
+			writeMemory((int)(write >>> 16), (short)(write & 0xffff));
+	}
+	
+	/**
+	 * Sets the speed that start() runs the CPU at, in cycles per second.  A
+	 * rate of 0 (the default) runs as fast as the host allows, which is what
+	 * batch runs want; interactive use should pick DEFAULT_CLOCK_RATE.
+	 */
+	public void setClockRate(long cyclesPerSecond) {
+		clockRate = cyclesPerSecond;
+	}
+	
+	/**
+	 * Runs the CPU until it halts or stop() is called, at the speed set by
+	 * setClockRate().
+	 */
 	public void start() {
 		if (isRunning)
 			return;
 		isRunning = true;
-		while(isRunning)
-			executeNext();
+		resuming = true;
+		runner = Thread.currentThread();
+		runStartNanos = System.nanoTime();
+		
+		if (clockRate > 0)
+			runGoverned(clockRate);
+		else
+			run(Long.MAX_VALUE);
+		
+		runner = null;
+		runNanos += System.nanoTime() - runStartNanos;
+		flushChanges();
+	}
+	
+	/**
+	 * Runs the CPU for (at least) the given number of cycles, or until it halts
+	 * or stop() is called, as fast as possible.  Returns the number of cycles
+	 * that were actually run.
+	 */
+	public long runFor(long cycles) {
+		if (isRunning)
+			return 0;
+		isRunning = true;
+		resuming = true;
+		runStartNanos = System.nanoTime();
+		
+		long startCycles = cycleCount;
+		run(cycleCount + cycles);
+		isRunning = false;
+		runNanos += System.nanoTime() - runStartNanos;
+		
+		flushChanges();
+		return cycleCount - startCycles;
+	}
+	
+	/**
+	 * Executes instructions until `endCycle` is reached or the CPU stops.
+	 * Instructions run straight through to the next scheduled event, which
+	 * then fires, so nothing is checked per instruction for it.
+	 * 
+	 * Every IDLE_CHECK_CYCLES cycles, unless recording a trace, checks whether
+	 * the program is stuck in an idle loop.  If so, the cycle count is moved
+	 * on by as many whole trips round the loop as fit before `endCycle` or the
+	 * next event, which leaves the same state as running them, and the check
+	 * is made again once the event has fired.  With no end (in start(), with
+	 * no clock rate), the thread instead parks until stop() or postWrite() is
+	 * called if there is no event, or if the loop is still idle after events
+	 * fired without writing to RAM, as events that keep scheduling themselves
+	 * (such as a RamMirror's) would otherwise keep it spinning; the cycles
+	 * spent waiting aren't counted, so no more events fire until then.
+	 */
+	private void run(long endCycle) {
+		applyPostedWrites();
+		
+		if (breakpoints != null) {
+			runWithBreakpoints(breakpoints, endCycle);
+			return;
+		}
+		
+		if (profiler != null) {
+			while (isRunning && cycleCount < endCycle) {
+				fireEvents();
+				
+				long limit      = Math.min(endCycle, events.nextCycle);
+				long checkCycle = Math.min(limit, cycleCount + IDLE_CHECK_CYCLES);
+				while(isRunning && cycleCount < checkCycle)
+					executeNext();
+				
+				if (metrics != null)
+					metrics.publish(this);
+				applyPostedWrites();
+			}
+			return;
+		}
+		
+		// When to check for an idle loop next, and the number of writes when
+		// the cycle count was last moved on through one (or -1).
+		long nextCheck  = cycleCount + IDLE_CHECK_CYCLES;
+		long idleWrites = -1;
+		
+		while (isRunning && cycleCount < endCycle) {
+			fireEvents();
+			
+			long limit      = Math.min(endCycle, events.nextCycle);
+			long checkCycle = Math.min(limit, nextCheck);
+			
+			if (compiler != null) {
+				while(isRunning && cycleCount < checkCycle)
+					compiler.executeNext(checkCycle);
+			} else {
+				while(isRunning && cycleCount < checkCycle)
+					executeFused(checkCycle);
+			}
+			
+			if (metrics != null)
+				metrics.publish(this);
+			
+			if (isRunning && cycleCount >= nextCheck && cycleCount < endCycle) {
+				nextCheck = cycleCount + IDLE_CHECK_CYCLES;
+				
+				fireEvents();
+				limit = Math.min(endCycle, events.nextCycle);
+				
+				// Moving on through an idle loop would leave its instructions
+				// out of the trace.
+				long period = trace == null ? findIdleLoop(limit) : 0;
+				if (period == 0) {
+					idleWrites = -1;
+				} else if (limit == Long.MAX_VALUE
+						|| (endCycle == Long.MAX_VALUE && idleWrites == writeCount)) {
+					parkWhileIdle(Long.MAX_VALUE);
+					idleWrites = -1;
+				} else {
+					cycleCount += (limit - cycleCount) / period * period;
+					idleWrites = writeCount;
+					nextCheck  = limit;
+				}
+			}
+			applyPostedWrites();
+		}
+	}
+	
+	/**
+	 * Runs for a few steps, watching for the CPU to come back to the state it
+	 * was in at the start without having written to RAM.  If it does, it will
+	 * go round that same loop until something from outside changes memory,
+	 * and the number of cycles one time round takes is returned; otherwise 0.
+	 * Gives up at `limit` cycles.  Only to be used when no hooks are attached.
+	 */
+	private long findIdleLoop(long limit) {
+		short startPc = pc, startSp = sp, startO = o;
+		System.arraycopy(registers, 0, idleRegisters, 0, registers.length);
+		long startCycles = cycleCount;
+		long startWrites = writeCount;
+		
+		for (int step=0; step<IDLE_PROBE_STEPS && isRunning && cycleCount < limit; step++) {
+			if (compiler != null)
+				compiler.executeNext(limit);
+			else
+				executeFused(limit);
+			
+			if (writeCount != startWrites)
+				return 0;
+			if (pc == startPc && sp == startSp && o == startO
+					&& Arrays.equals(registers, idleRegisters))
+				return isRunning ? cycleCount - startCycles : 0;
+		}
+		return 0;
+	}
+	
+	/**
+	 * Parks the running thread until stop() or postWrite() is called, or
+	 * until System.nanoTime() reaches the given deadline (Long.MAX_VALUE for
+	 * none).
+	 */
+	private void parkWhileIdle(long deadlineNanos) {
+		flushChanges();
+		while (isRunning && postedWrites.isEmpty()) {
+			if (deadlineNanos == Long.MAX_VALUE) {
+				LockSupport.park(this);
+			} else {
+				long left = deadlineNanos - System.nanoTime();
+				if (left <= 0)
+					break;
+				LockSupport.parkNanos(this, left);
+			}
+		}
+	}
+	
+	/**
+	 * Like run(), but stops before executing an instruction at a breakpoint,
+	 * or right after an instruction that accessed a watched address.  The
+	 * instruction that start() or runFor() starts at is never treated as a
+	 * breakpoint, so that running again after a stop moves on; the slices of
+	 * a governed run don't count as starting again.
+	 */
+	private void runWithBreakpoints(Breakpoints breakpoints, long endCycle) {
+		breakpoints.clearHit();
+		
+		while (isRunning && cycleCount < endCycle) {
+			fireEvents();
+			
+			long limit      = Math.min(endCycle, events.nextCycle);
+			long checkCycle = Math.min(limit, cycleCount + IDLE_CHECK_CYCLES);
+			
+			while(isRunning && cycleCount < checkCycle) {
+				int address = pc & 0xffff;
+				if (!resuming && breakpoints.isBreakpoint(address)) {
+					isRunning = false;
+					breakpoints.hit(Breakpoints.Kind.BREAKPOINT, address);
+					break;
+				}
+				resuming = false;
+				
+				executeNext();
+				
+				if (breakpoints.hasHit()) {
+					isRunning = false;
+					breakpoints.reportHit();
+					break;
+				}
+			}
+			
+			if (metrics != null)
+				metrics.publish(this);
+			applyPostedWrites();
+		}
+	}
+	
+	/**
+	 * Runs the CPU in time slices, parking the thread whenever it is ahead of
+	 * the given clock rate.  After a short stall (GC, a busy host) the CPU runs
+	 * flat out until it has caught up; after a long one it just resumes from
+	 * the current time instead of racing through the backlog.
+	 * 
+	 * When the program is stuck in an idle loop, the thread parks until stop()
+	 * or postWrite() is called or the next event is due, instead of waking up
+	 * for every slice.  The cycle count then moves on by the whole trips round
+	 * the loop that would have fit in the time spent parked.
+	 */
+	private void runGoverned(long cyclesPerSecond) {
+		long sliceCycles = Math.max(1, cyclesPerSecond * SLICE_MILLIS / 1000);
+		
+		long baseNanos  = System.nanoTime();
+		long baseCycles = cycleCount;
+		
+		while (isRunning) {
+			run(cycleCount + sliceCycles);
+			
+			if (isRunning && breakpoints == null && trace == null && profiler == null) {
+				long period = findIdleLoop(events.nextCycle);
+				if (period > 0) {
+					long eventNanos = events.nextCycle == Long.MAX_VALUE ? Long.MAX_VALUE
+							: baseNanos + (long)((events.nextCycle - baseCycles) * (1e9 / cyclesPerSecond));
+					parkWhileIdle(eventNanos);
+					
+					long parkedUntil = baseCycles + (long)((System.nanoTime() - baseNanos) * (cyclesPerSecond / 1e9));
+					parkedUntil = Math.min(parkedUntil, events.nextCycle);
+					if (parkedUntil > cycleCount)
+						cycleCount += (parkedUntil - cycleCount) / period * period;
+				}
+			}
+			
+			long due = baseNanos + (long)((cycleCount - baseCycles) * (1e9 / cyclesPerSecond));
+			long now = System.nanoTime();
+			
+			if (due > now) {
+				LockSupport.parkNanos(due - now);
+			} else if (now - due > MAX_LAG_MILLIS * 1000000) {
+				baseNanos  = now;
+				baseCycles = cycleCount;
+			}
+		}
 	}
 }
@@ -0,0 +1,148 @@
+package dcpu.emulator;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+
+/**
+ * Publishes the performance counters of a Cpu as a JMX MBean, named
+ * "dcpu.emulator:type=Cpu,name=<name>".
+ * 
+ * The counters themselves are plain fields of the Cpu, only written by the
+ * thread running it, so counting costs next to nothing.  That thread copies
+ * them here every 65536 cycles or so while running, and whenever it
+ * stops or flushes its changes, from where they can be read at any time
+ * without stopping the CPU.
+ */
+public class CpuMetrics implements CpuMetricsMBean {
+	/** Minimum time between two samples for the rates, in nanoseconds. */
+	private static final long SAMPLE_NANOS = 1000000000;
+	
+	private final Cpu        cpu;
+	private final ObjectName name;
+	
+	// The counters, as last published by the thread running the CPU.
+	private volatile long instructionCount, compiledCount, decodeCount,
+	                      cycleCount, callbackNanos, runNanos, timeToHaltNanos = -1;
+	
+	// Counts and time at the last sample, and the rates since the one before.
+	private long   sampleNanos, sampleInstructions, sampleCycles;
+	private double instructionsPerSecond, cyclesPerSecond;
+	
+	private CpuMetrics(Cpu cpu, ObjectName name) {
+		this.cpu  = cpu;
+		this.name = name;
+		
+		sampleNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Starts collecting metrics for the given Cpu, and registers them with the
+	 * platform MBean server under the given name.  Must not be called while
+	 * the CPU is running.
+	 */
+	public static CpuMetrics register(Cpu cpu, String name) throws JMException {
+		CpuMetrics metrics = new CpuMetrics(cpu,
+				new ObjectName("dcpu.emulator:type=Cpu,name=" + ObjectName.quote(name)));
+		
+		ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metrics.name);
+		metrics.publish(cpu);
+		cpu.setMetrics(metrics);
+		
+		return metrics;
+	}
+	
+	/**
+	 * Stops collecting metrics, and unregisters them.  Must not be called
+	 * while the CPU is running.
+	 */
+	public void unregister() throws JMException {
+		cpu.setMetrics(null);
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+	}
+	
+	/**
+	 * Copies the counters of the given Cpu.  Called by the thread running it.
+	 */
+	void publish(Cpu cpu) {
+		instructionCount = cpu.instructionCount;
+		compiledCount    = cpu.compiledCount;
+		decodeCount      = cpu.decodeCount;
+		cycleCount       = cpu.getCycleCount();
+		callbackNanos    = cpu.callbackNanos;
+		runNanos         = cpu.getRunNanos();
+		timeToHaltNanos  = cpu.getTimeToHaltNanos();
+	}
+	
+	/**
+	 * Works out the rates anew, if the last sample is old enough.
+	 */
+	private synchronized void sample() {
+		long now     = System.nanoTime();
+		long elapsed = now - sampleNanos;
+		if (elapsed < SAMPLE_NANOS)
+			return;
+		
+		long instructions = instructionCount;
+		long cycles       = cycleCount;
+		
+		instructionsPerSecond = (instructions - sampleInstructions) * 1e9 / elapsed;
+		cyclesPerSecond       = (cycles - sampleCycles) * 1e9 / elapsed;
+		
+		sampleNanos        = now;
+		sampleInstructions = instructions;
+		sampleCycles       = cycles;
+	}
+	
+	@Override
+	public long getInstructionCount() {
+		return instructionCount;
+	}
+	
+	@Override
+	public long getCycleCount() {
+		return cycleCount;
+	}
+	
+	@Override
+	public synchronized double getInstructionsPerSecond() {
+		sample();
+		return instructionsPerSecond;
+	}
+	
+	@Override
+	public synchronized double getCyclesPerSecond() {
+		sample();
+		return cyclesPerSecond;
+	}
+	
+	@Override
+	public long getRunMillis() {
+		return runNanos / 1000000;
+	}
+	
+	@Override
+	public long getTimeToHaltMillis() {
+		long nanos = timeToHaltNanos;
+		return nanos < 0 ? -1 : nanos / 1000000;
+	}
+	
+	@Override
+	public long getCallbackMillis() {
+		return callbackNanos / 1000000;
+	}
+	
+	@Override
+	public double getDecodeCacheHitRatio() {
+		long instructions = instructionCount;
+		return instructions == 0 ? 0 : 1 - Math.min(decodeCount, instructions) / (double)instructions;
+	}
+	
+	@Override
+	public double getCompiledRatio() {
+		long instructions = instructionCount;
+		return instructions == 0 ? 0 : compiledCount / (double)instructions;
+	}
+}
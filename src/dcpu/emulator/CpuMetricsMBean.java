@@ -0,0 +1,28 @@
+package dcpu.emulator;
+
+
+/**
+ * Management interface of CpuMetrics.  Counts are totals since the Cpu was
+ * created; rates are averages over the last second or so.
+ */
+public interface CpuMetricsMBean {
+	public long getInstructionCount();
+	public long getCycleCount();
+	public double getInstructionsPerSecond();
+	public double getCyclesPerSecond();
+	
+	/** Total time spent running through start() or runFor(). */
+	public long getRunMillis();
+	
+	/** Time spent running from the last reset until the halt, or -1. */
+	public long getTimeToHaltMillis();
+	
+	/** Total time spent in the batch callback (not in per-change callbacks). */
+	public long getCallbackMillis();
+	
+	/** Share of instructions that were found in the decoded-instruction cache. */
+	public double getDecodeCacheHitRatio();
+	
+	/** Share of instructions that were run as compiled blocks. */
+	public double getCompiledRatio();
+}
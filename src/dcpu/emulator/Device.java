@@ -0,0 +1,23 @@
+package dcpu.emulator;
+
+
+/**
+ * A peripheral mapped into the DCPU's address space with Cpu.attach().  Reads
+ * and writes by instructions to the device's pages go to the device instead of
+ * RAM; instructions themselves are always fetched from RAM.  The methods are
+ * called on the thread running the CPU.
+ */
+public interface Device {
+	/** Number of words in a page, the unit devices are mapped in. */
+	public static final int PAGE_SIZE = 0x100;
+	
+	/**
+	 * Returns the word at the given address.
+	 */
+	public short read(int address);
+	
+	/**
+	 * Stores a word at the given address.
+	 */
+	public void write(int address, short value);
+}
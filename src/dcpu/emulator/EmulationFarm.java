@@ -0,0 +1,253 @@
+package dcpu.emulator;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Runs many DCPU programs headless, in parallel over a work-stealing thread
+ * pool.  Every job gets a Cpu of its own, and each result is only written by
+ * the thread that ran its job, so jobs share no mutable state at all.
+ */
+public class EmulationFarm {
+	/** Reasons for a job to stop running. */
+	public static enum StopReason {
+		HALTED,     // a halt instruction was executed
+		MAX_CYCLES, // the cycle limit was reached
+		PC_REACHED  // PC reached the stop address
+	}
+	
+	/**
+	 * A program to run, along with the conditions for stopping it.  A job
+	 * always stops when the program halts.
+	 */
+	public static class Job {
+		private final short[] binary;
+		private final long    maxCycles;
+		private final int     stopPc;
+		
+		/**
+		 * Creates a job that runs the given binary until it halts or has run
+		 * for at least `maxCycles` cycles.
+		 */
+		public Job(short[] binary, long maxCycles) {
+			this(binary, maxCycles, -1);
+		}
+		
+		/**
+		 * Creates a job that runs the given binary until it halts, has run for
+		 * at least `maxCycles` cycles, or is about to execute the instruction at
+		 * address `stopPc`.  A negative `stopPc` means no such address.
+		 */
+		public Job(short[] binary, long maxCycles, int stopPc) {
+			this.binary    = binary;
+			this.maxCycles = maxCycles;
+			this.stopPc    = stopPc;
+		}
+	}
+	
+	/**
+	 * The final state of a job.
+	 */
+	public static class Result {
+		private final StopReason reason;
+		private final long       cycleCount;
+		private final long       instructionCount;
+		private final short[]    registers;
+		private final byte[]     memoryDigest;
+		private final byte[]     registerDigest;
+		
+		Result(StopReason reason, long cycleCount, long instructionCount,
+				short[] registers, byte[] memoryDigest, byte[] registerDigest) {
+			this.reason           = reason;
+			this.cycleCount       = cycleCount;
+			this.instructionCount = instructionCount;
+			this.registers        = registers;
+			this.memoryDigest     = memoryDigest;
+			this.registerDigest   = registerDigest;
+		}
+		
+		public StopReason getStopReason() {
+			return reason;
+		}
+		
+		public long getCycleCount() {
+			return cycleCount;
+		}
+		
+		/**
+		 * Returns the number of instructions executed.  Trips round an idle
+		 * loop that the CPU skipped over (see Cpu.runFor) aren't counted.
+		 */
+		public long getInstructionCount() {
+			return instructionCount;
+		}
+		
+		/**
+		 * Returns the final value of the register with the given id (see
+		 * Cpu.getRegister).
+		 */
+		public short getRegister(int id) {
+			return registers[id];
+		}
+		
+		/**
+		 * Returns the SHA-256 digest of the final contents of RAM, with each
+		 * word stored little-endian.
+		 */
+		public byte[] getMemoryDigest() {
+			return memoryDigest.clone();
+		}
+		
+		/**
+		 * Returns the SHA-256 digest of the final registers, in id order and
+		 * with each register stored little-endian.
+		 */
+		public byte[] getRegisterDigest() {
+			return registerDigest.clone();
+		}
+		
+		@Override
+		public String toString() {
+			return reason + " after " + cycleCount + " cycles, memory "
+			     + toHex(memoryDigest) + ", registers " + toHex(registerDigest);
+		}
+	}
+	
+	/** Number of jobs below which a task runs its jobs instead of splitting. */
+	private static final int SPLIT_THRESHOLD = 2;
+	
+	private final ForkJoinPool pool;
+	
+	/**
+	 * Creates a farm that uses one thread per available processor.
+	 */
+	public EmulationFarm() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Creates a farm that uses the given number of threads.
+	 */
+	public EmulationFarm(int parallelism) {
+		this.pool = new ForkJoinPool(parallelism);
+	}
+	
+	/**
+	 * Runs all given jobs, and returns their results in the same order.
+	 */
+	public Result[] run(List<Job> jobs) {
+		Job[]    jobArray = jobs.toArray(new Job[jobs.size()]);
+		Result[] results  = new Result[jobArray.length];
+		
+		pool.invoke(new RunTask(jobArray, results, 0, jobArray.length));
+		
+		return results;
+	}
+	
+	/**
+	 * Stops the farm's threads.  The farm can't be used afterwards.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+	
+	/**
+	 * Runs a single job on the calling thread.  The CPU runs through runFor(),
+	 * with a breakpoint at the stop address if there is one, so that it stops
+	 * as soon as one of the job's stop conditions holds.
+	 */
+	public static Result run(Job job) {
+		Cpu cpu = new Cpu(null);
+		cpu.initMem(job.binary);
+		
+		if (job.stopPc >= 0 && job.stopPc <= 0xffff) {
+			Breakpoints breakpoints = new Breakpoints(null);
+			breakpoints.setBreakpoint(job.stopPc, true);
+			cpu.setBreakpoints(breakpoints);
+		}
+		
+		StopReason reason;
+		
+		for (;;) {
+			if (cpu.isHalted()) {
+				reason = StopReason.HALTED;
+				break;
+			}
+			if (cpu.getCycleCount() >= job.maxCycles) {
+				reason = StopReason.MAX_CYCLES;
+				break;
+			}
+			if ((cpu.getRegister(Cpu.REG_PC) & 0xffff) == job.stopPc) {
+				reason = StopReason.PC_REACHED;
+				break;
+			}
+			
+			cpu.runFor(job.maxCycles - cpu.getCycleCount());
+		}
+		
+		short[] registers = new short[ChangeBatch.REGISTER_COUNT];
+		for (int id=0; id<registers.length; id++)
+			registers[id] = cpu.getRegister(id);
+		
+		return new Result(reason, cpu.getCycleCount(), cpu.instructionCount, registers,
+				digest(cpu.memory, 0x10000), digest(registers, registers.length));
+	}
+	
+	/**
+	 * Splits its range of jobs in halves until it's small enough to run, so
+	 * that idle threads can steal the other halves.
+	 */
+	private static class RunTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final Job[]    jobs;
+		private final Result[] results;
+		private final int      from;
+		private final int      to;
+		
+		RunTask(Job[] jobs, Result[] results, int from, int to) {
+			this.jobs    = jobs;
+			this.results = results;
+			this.from    = from;
+			this.to      = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= SPLIT_THRESHOLD) {
+				for (int i=from; i<to; i++)
+					results[i] = EmulationFarm.run(jobs[i]);
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new RunTask(jobs, results, from, mid),
+				          new RunTask(jobs, results, mid, to));
+			}
+		}
+	}
+	
+	private static byte[] digest(short[] words, int length) {
+		byte[] bytes = new byte[length * 2];
+		for (int i=0; i<length; i++) {
+			bytes[i*2]   = (byte)(words[i] & 0xff);
+			bytes[i*2+1] = (byte)(words[i] >> 8);
+		}
+		
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(bytes);
+		} catch (NoSuchAlgorithmException ex) {
+			// Every Java platform is required to support SHA-256.
+			throw new IllegalStateException(ex);
+		}
+	}
+	
+	private static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			builder.append(String.format("%02x", b & 0xff));
+		return builder.toString();
+	}
+}
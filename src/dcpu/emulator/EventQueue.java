@@ -0,0 +1,108 @@
+package dcpu.emulator;
+
+import java.util.Arrays;
+
+
+/**
+ * Events scheduled on a Cpu, kept in a binary min-heap ordered by the cycle
+ * they are due at.  Events due at the same cycle come out in the order they
+ * were added.  The heap is stored in plain arrays, so adding and taking events
+ * doesn't allocate.
+ */
+class EventQueue {
+	// Due cycle, order of adding and event of each heap node.
+	private long[]      cycles = new long[16];
+	private long[]      order  = new long[16];
+	private Cpu.Event[] events = new Cpu.Event[16];
+	private int         size;
+	private long        added;
+	
+	/** The cycle the earliest event is due at, or Long.MAX_VALUE if none. */
+	long nextCycle = Long.MAX_VALUE;
+	
+	void add(long cycle, Cpu.Event event) {
+		if (size == cycles.length) {
+			cycles = Arrays.copyOf(cycles, size * 2);
+			order  = Arrays.copyOf(order, size * 2);
+			events = Arrays.copyOf(events, size * 2);
+		}
+		
+		set(size, cycle, added++, event);
+		siftUp(size++);
+		nextCycle = cycles[0];
+	}
+	
+	/**
+	 * Removes and returns the earliest event.  Must not be called when empty.
+	 */
+	Cpu.Event poll() {
+		Cpu.Event event = events[0];
+		
+		size--;
+		set(0, cycles[size], order[size], events[size]);
+		events[size] = null;
+		siftDown(0);
+		
+		nextCycle = size > 0 ? cycles[0] : Long.MAX_VALUE;
+		return event;
+	}
+	
+	/**
+	 * Removes every occurrence of the given event.
+	 */
+	void remove(Cpu.Event event) {
+		int kept = 0;
+		for (int i=0; i<size; i++) {
+			if (events[i] != event)
+				set(kept++, cycles[i], order[i], events[i]);
+		}
+		Arrays.fill(events, kept, size, null);
+		size = kept;
+		
+		for (int i=size / 2 - 1; i>=0; i--)
+			siftDown(i);
+		nextCycle = size > 0 ? cycles[0] : Long.MAX_VALUE;
+	}
+	
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!before(i, parent))
+				break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+	
+	private void siftDown(int i) {
+		for (;;) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && before(child + 1, child))
+				child++;
+			if (!before(child, i))
+				break;
+			swap(i, child);
+			i = child;
+		}
+	}
+	
+	private boolean before(int i, int j) {
+		return cycles[i] < cycles[j] || (cycles[i] == cycles[j] && order[i] < order[j]);
+	}
+	
+	private void swap(int i, int j) {
+		long      cycle = cycles[i];
+		long      added = order[i];
+		Cpu.Event event = events[i];
+		set(i, cycles[j], order[j], events[j]);
+		set(j, cycle, added, event);
+	}
+	
+	private void set(int i, long cycle, long added, Cpu.Event event) {
+		cycles[i] = cycle;
+		order[i]  = added;
+		events[i] = event;
+	}
+}
@@ -0,0 +1,232 @@
+package dcpu.emulator;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+/**
+ * Runs a large number of guest programs side by side on a few threads.
+ * 
+ * Guests don't get a Cpu of their own.  Between turns, each is kept as a
+ * Snapshot, and a turn consists of restoring it into one of the worker
+ * threads' Cpus, running it for a fixed number of cycles and taking a new
+ * snapshot.  Since snapshots only hold the pages written to, and all guests
+ * loaded from the same binary start out sharing its pages (and a single
+ * page of zeros for the rest of RAM), a guest costs little more memory than
+ * what it has written.  Switching between guests only copies the pages in
+ * which they differ.
+ * 
+ * Guests take turns in a round-robin queue, each getting the same number of
+ * cycles per turn, until they halt, use up their cycle budget or are
+ * stopped.
+ */
+public class GuestHost {
+	/** States a guest can be in. */
+	public static enum State {
+		RUNNABLE,      // waiting for or having its turn
+		HALTED,        // a halt instruction was executed
+		OUT_OF_CYCLES, // the cycle budget was used up
+		STOPPED        // stop() was called
+	}
+	
+	/**
+	 * A program running on the host.
+	 */
+	public class Guest {
+		private final long cycleBudget;
+		
+		// Written only by the worker thread running the guest's turn.
+		private volatile Snapshot state;
+		private volatile State    status = State.RUNNABLE;
+		
+		private volatile boolean stopRequested;
+		
+		Guest(Snapshot state, long cycleBudget) {
+			this.state       = state;
+			this.cycleBudget = cycleBudget;
+		}
+		
+		public State getState() {
+			return status;
+		}
+		
+		/**
+		 * Returns the guest's machine state as of the end of its last turn.
+		 */
+		public Snapshot getSnapshot() {
+			return state;
+		}
+		
+		public long getCycleCount() {
+			return state.cycleCount;
+		}
+		
+		/**
+		 * Stops the guest at the end of its current turn, or before its next.
+		 */
+		public void stop() {
+			stopRequested = true;
+		}
+		
+		private void finish(State status) {
+			this.status = status;
+			synchronized (GuestHost.this) {
+				runnable--;
+				GuestHost.this.notifyAll();
+			}
+		}
+	}
+	
+	/** Default number of cycles each guest runs for in a single turn. */
+	public static final long DEFAULT_CYCLES_PER_TURN = 10000;
+	
+	// A page of zeros, shared by every image.
+	private static final short[] ZERO_PAGE = new short[Snapshot.PAGE_SIZE];
+	
+	private final long cyclesPerTurn;
+	private final Thread[] workers;
+	private final LinkedBlockingQueue<Guest> queue = new LinkedBlockingQueue<Guest>();
+	
+	// Initial state for each binary loaded so far.
+	private final Map<Binary, Snapshot> images = new HashMap<Binary, Snapshot>();
+	
+	// Number of guests not yet halted, out of cycles or stopped.
+	private int runnable;
+	
+	/**
+	 * Creates a host that uses one thread per available processor and the
+	 * default number of cycles per turn.
+	 */
+	public GuestHost() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_CYCLES_PER_TURN);
+	}
+	
+	/**
+	 * Creates a host that uses the given number of threads, and gives every
+	 * guest (at least) `cyclesPerTurn` cycles at a time.
+	 */
+	public GuestHost(int threads, long cyclesPerTurn) {
+		this.cyclesPerTurn = cyclesPerTurn;
+		this.workers       = new Thread[threads];
+		
+		for (int i=0; i<threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "GuestHost-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+	
+	/**
+	 * Starts a guest running the given binary, for at most (about)
+	 * `cycleBudget` cycles.  Pass Long.MAX_VALUE to run it until it halts or
+	 * is stopped.
+	 */
+	public Guest spawn(short[] binary, long cycleBudget) {
+		Guest guest = new Guest(image(binary), cycleBudget);
+		synchronized (this) {
+			runnable++;
+		}
+		queue.add(guest);
+		return guest;
+	}
+	
+	/**
+	 * Waits until every guest has halted, run out of cycles or stopped.
+	 */
+	public synchronized void awaitAll() throws InterruptedException {
+		while (runnable > 0)
+			wait();
+	}
+	
+	/**
+	 * Stops the host's threads.  Guests still running are left as they were
+	 * at the end of their last turn, and the host can't be used afterwards.
+	 */
+	public void shutdown() {
+		for (Thread worker : workers)
+			worker.interrupt();
+	}
+	
+	/**
+	 * Returns the initial state for the given binary, sharing its pages with
+	 * every other guest that loaded the same one.
+	 */
+	private synchronized Snapshot image(short[] binary) {
+		Binary key = new Binary(binary);
+		Snapshot image = images.get(key);
+		if (image != null)
+			return image;
+		
+		short[][] pages = new short[Snapshot.PAGE_COUNT][];
+		for (int page=0; page<Snapshot.PAGE_COUNT; page++) {
+			int start = page * Snapshot.PAGE_SIZE;
+			short[] words = Arrays.copyOfRange(binary, Math.min(start, binary.length),
+					Math.min(start + Snapshot.PAGE_SIZE, binary.length));
+			words = Arrays.copyOf(words, Snapshot.PAGE_SIZE);
+			pages[page] = Arrays.equals(words, ZERO_PAGE) ? ZERO_PAGE : words;
+		}
+		
+		image = new Snapshot(pages, new short[ChangeBatch.REGISTER_COUNT], 0, false);
+		images.put(key, image);
+		return image;
+	}
+	
+	private void work() {
+		Cpu cpu = new Cpu(null);
+		cpu.setCompilerEnabled(true);
+		
+		try {
+			for (;;) {
+				Guest guest = queue.take();
+				if (guest.stopRequested) {
+					guest.finish(State.STOPPED);
+					continue;
+				}
+				
+				cpu.restore(guest.state);
+				cpu.runFor(Math.min(cyclesPerTurn, guest.cycleBudget - cpu.getCycleCount()));
+				guest.state = cpu.snapshot();
+				
+				if (cpu.isHalted())
+					guest.finish(State.HALTED);
+				else if (cpu.getCycleCount() >= guest.cycleBudget)
+					guest.finish(State.OUT_OF_CYCLES);
+				else if (guest.stopRequested)
+					guest.finish(State.STOPPED);
+				else
+					queue.add(guest);
+			}
+		} catch (InterruptedException ex) {
+			// Shut down.
+		}
+	}
+	
+	/**
+	 * A binary, compared by its contents.
+	 */
+	private static class Binary {
+		private final short[] words;
+		private final int     hash;
+		
+		Binary(short[] words) {
+			this.words = words.clone();
+			this.hash  = Arrays.hashCode(words);
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Binary && Arrays.equals(words, ((Binary)other).words);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package dcpu.emulator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+
+/**
+ * Counts how many times each address is executed and how many cycles it
+ * takes, along with the same per opcode.  Attach it with Cpu.setProfiler.
+ * Counting is a few array increments per instruction; sorting and formatting
+ * only happens when a report is written.
+ */
+public class Profiler {
+	private static final String[] BASIC_NAMES = {
+		null,  "SET", "ADD", "SUB", "MUL", "DIV", "MOD", "SHL",
+		"SHR", "AND", "BOR", "XOR", "IFE", "IFN", "IFG", "IFB"
+	};
+	
+	private final long[] addressCount  = new long[0x10000];
+	private final long[] addressCycles = new long[0x10000];
+	private final byte[] addressOp     = new byte[0x10000];
+	
+	// Indexed by basic opcode (1-15), or 16 + extended opcode.
+	private final long[] opcodeCount  = new long[16 + 0x40];
+	private final long[] opcodeCycles = new long[16 + 0x40];
+	
+	/**
+	 * Counts one execution of the given decoded instruction, at the given
+	 * address.
+	 */
+	void record(int address, int insn, long cycles) {
+		int opcode = insn & 0xf;
+		int op = opcode != 0 ? opcode : 16 + ((insn >>> 4) & 0x3f);
+		
+		addressCount[address]++;
+		addressCycles[address] += cycles;
+		addressOp[address] = (byte)op;
+		opcodeCount[op]++;
+		opcodeCycles[op] += cycles;
+	}
+	
+	/**
+	 * Clears all counts.
+	 */
+	public void reset() {
+		Arrays.fill(addressCount, 0);
+		Arrays.fill(addressCycles, 0);
+		Arrays.fill(opcodeCount, 0);
+		Arrays.fill(opcodeCycles, 0);
+		Arrays.fill(addressOp, (byte)0);
+	}
+	
+	public long getExecutionCount(int address) {
+		return addressCount[address];
+	}
+	
+	public long getCycles(int address) {
+		return addressCycles[address];
+	}
+	
+	/**
+	 * Writes a human-readable report of the `limit` addresses that took the
+	 * most cycles, followed by the cycles per opcode.
+	 */
+	public void writeReport(Writer out, int limit) throws IOException {
+		long count = 0
+		   , total = 0;
+		for (int op=0; op<opcodeCount.length; op++) {
+			count += opcodeCount[op];
+			total += opcodeCycles[op];
+		}
+		
+		out.write(String.format("%d instructions, %d cycles%n%n", count, total));
+		
+		out.write(String.format("%-8s %12s %12s %7s%n", "Address", "Executions", "Cycles", "Cycles%"));
+		Integer[] addresses = sortByCycles(addressCycles);
+		for (int i=0; i<addresses.length && i<limit; i++) {
+			int address = addresses[i];
+			out.write(String.format("0x%04x   %12d %12d %6.2f%%%n", address,
+					addressCount[address], addressCycles[address],
+					percent(addressCycles[address], total)));
+		}
+		
+		out.write(String.format("%n%-8s %12s %12s %7s%n", "Opcode", "Executions", "Cycles", "Cycles%"));
+		for (int op : sortByCycles(opcodeCycles)) {
+			out.write(String.format("%-8s %12d %12d %6.2f%%%n", opcodeName(op),
+					opcodeCount[op], opcodeCycles[op],
+					percent(opcodeCycles[op], total)));
+		}
+	}
+	
+	/**
+	 * Writes all executed addresses as CSV, with a header row:
+	 * "address,executions,cycles".
+	 */
+	public void writeCsv(Writer out) throws IOException {
+		out.write("address,executions,cycles\n");
+		for (int address=0; address<0x10000; address++) {
+			if (addressCount[address] != 0) {
+				out.write(String.format("0x%04x,%d,%d%n", address,
+						addressCount[address], addressCycles[address]));
+			}
+		}
+	}
+	
+	/**
+	 * Writes the cycles per address in the "folded stacks" format read by
+	 * flamegraph.pl and compatible tools, one line per executed address with
+	 * the opcode last executed there and the address as frames.
+	 */
+	public void writeFolded(Writer out) throws IOException {
+		for (int address=0; address<0x10000; address++) {
+			if (addressCycles[address] != 0) {
+				out.write(String.format("%s;0x%04x %d%n", opcodeName(addressOp[address]),
+						address, addressCycles[address]));
+			}
+		}
+	}
+	
+	/**
+	 * Returns the indices of the non-zero entries of `cycles`, ordered by
+	 * decreasing value.
+	 */
+	private static Integer[] sortByCycles(final long[] cycles) {
+		int n = 0;
+		for (long c : cycles)
+			if (c != 0) n++;
+		
+		Integer[] indices = new Integer[n];
+		n = 0;
+		for (int i=0; i<cycles.length; i++)
+			if (cycles[i] != 0) indices[n++] = i;
+		
+		Arrays.sort(indices, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(cycles[b], cycles[a]);
+			}
+		});
+		return indices;
+	}
+	
+	private static String opcodeName(int op) {
+		if (op < 16)
+			return BASIC_NAMES[op];
+		if (op == 16 + 0x01)
+			return "JSR";
+		return String.format("EXT_%02x", op - 16);
+	}
+	
+	private static double percent(long part, long total) {
+		return total == 0 ? 0 : 100.0 * part / total;
+	}
+}
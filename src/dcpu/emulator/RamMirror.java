@@ -0,0 +1,213 @@
+package dcpu.emulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Publishes the state of a running Cpu to a memory-mapped file, so that other
+ * threads and processes can look at it without copying or locking.  The CPU
+ * thread copies the pages of RAM written since the last time into the file
+ * at safe points: every so many cycles, and whenever the CPU stops.  Once the
+ * CPU has stopped, the file holds its final state, so copying it makes a
+ * snapshot.
+ * 
+ * The file is little-endian, laid out as:
+ * 
+ *   0   int      MAGIC
+ *   4   int      VERSION
+ *   8   long     sequence number
+ *   16  long     cycle count
+ *   24  short[]  registers, in id order (see Cpu.getRegister)
+ *   48  short[]  RAM, 0x10000 words
+ * 
+ * Readers keep a consistent view with the sequence number: it is odd while
+ * the CPU thread is writing, and changes every time it does.  A reader reads
+ * the sequence number, then the state, then the sequence number again, and
+ * tries again if the two differ or are odd.  Reader does that for Java tools.
+ */
+public class RamMirror implements Closeable {
+	public static final int MAGIC   = 0x44435052; // "DCPR"
+	public static final int VERSION = 1;
+	
+	static final int SEQUENCE_OFFSET  = 8;
+	static final int CYCLES_OFFSET    = 16;
+	static final int REGISTERS_OFFSET = 24;
+	static final int RAM_OFFSET       = 48;
+	static final int FILE_SIZE        = RAM_OFFSET + 0x10000 * 2;
+	
+	private static final VarHandle LONG =
+			MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	
+	private final FileChannel      channel;
+	private final MappedByteBuffer buffer;
+	private final ShortBuffer      ram;
+	private long                   sequence;
+	
+	private Cpu cpu;
+	private long cyclesPerPublish;
+	
+	// Publishes and schedules itself again, while attached.
+	private final Cpu.Event publisher = new Cpu.Event() {
+		@Override
+		public void fire(long cycle) {
+			publish();
+			cpu.schedule(cycle + cyclesPerPublish, this);
+		}
+	};
+	
+	/**
+	 * Creates (or overwrites) the given file and maps it.
+	 */
+	public RamMirror(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		buffer  = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		
+		buffer.position(RAM_OFFSET);
+		ram = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+	}
+	
+	/**
+	 * Starts mirroring the given CPU, publishing its whole state right away
+	 * and then every `cyclesPerPublish` cycles (if more than 0) while it
+	 * runs, as well as whenever it stops.  Must not be called while the CPU
+	 * is running.
+	 */
+	public void attach(Cpu cpu, long cyclesPerPublish) {
+		this.cpu              = cpu;
+		this.cyclesPerPublish = cyclesPerPublish;
+		
+		cpu.setMirror(this);
+		publish();
+		if (cyclesPerPublish > 0)
+			cpu.schedule(cpu.getCycleCount() + cyclesPerPublish, publisher);
+	}
+	
+	/**
+	 * Stops mirroring.  The file keeps the last published state.  Must not be
+	 * called while the CPU is running.
+	 */
+	public void detach() {
+		if (cpu == null)
+			return;
+		
+		cpu.cancel(publisher);
+		cpu.setMirror(null);
+		cpu = null;
+	}
+	
+	/**
+	 * Copies the pages of RAM written since the last publish, the registers
+	 * and the cycle count to the file.  Called on the thread running the CPU.
+	 */
+	void publish() {
+		LONG.setOpaque(buffer, SEQUENCE_OFFSET, ++sequence);
+		VarHandle.storeStoreFence();
+		
+		short[] memory = cpu.memory;
+		long[]  pages  = cpu.unpublishedPages;
+		for (int i=0; i<pages.length; i++) {
+			long word = pages[i];
+			while (word != 0) {
+				int start = ((i << 6) + Long.numberOfTrailingZeros(word)) * Snapshot.PAGE_SIZE;
+				ram.position(start);
+				ram.put(memory, start, Snapshot.PAGE_SIZE);
+				word &= word - 1;
+			}
+			pages[i] = 0;
+		}
+		
+		for (int id=0; id<ChangeBatch.REGISTER_COUNT; id++)
+			buffer.putShort(REGISTERS_OFFSET + id * 2, cpu.getRegister(id));
+		buffer.putLong(CYCLES_OFFSET, cpu.getCycleCount());
+		
+		LONG.setRelease(buffer, SEQUENCE_OFFSET, ++sequence);
+	}
+	
+	/**
+	 * Detaches, and unmaps the file as far as Java allows (the mapping itself
+	 * goes away once the buffer is garbage collected).
+	 */
+	@Override
+	public void close() throws IOException {
+		detach();
+		buffer.force();
+		channel.close();
+	}
+	
+	/**
+	 * Reads consistent states from a file written by a RamMirror, possibly in
+	 * another process.
+	 */
+	public static class Reader implements Closeable {
+		private final FileChannel      channel;
+		private final MappedByteBuffer buffer;
+		private final ShortBuffer      ram;
+		
+		public Reader(Path file) throws IOException {
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+			buffer  = channel.map(FileChannel.MapMode.READ_ONLY, 0, FILE_SIZE);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+				throw new IOException("Not a DCPU RAM mirror.");
+			
+			buffer.position(RAM_OFFSET);
+			ram = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+		}
+		
+		/**
+		 * Returns the sequence number of the last published state.
+		 */
+		public long getSequence() {
+			return (long)LONG.getAcquire(buffer, SEQUENCE_OFFSET);
+		}
+		
+		/**
+		 * Copies a consistent state into the given arrays: all of RAM (0x10000
+		 * words) and the registers (ChangeBatch.REGISTER_COUNT words).  Either
+		 * may be null to skip it.  Returns the cycle count of the state.
+		 */
+		public long read(short[] memory, short[] registers) {
+			for (;;) {
+				long before = getSequence();
+				if ((before & 1) != 0) {
+					Thread.onSpinWait();
+					continue;
+				}
+				
+				if (memory != null) {
+					ram.position(0);
+					ram.get(memory, 0, 0x10000);
+				}
+				if (registers != null) {
+					for (int id=0; id<ChangeBatch.REGISTER_COUNT; id++)
+						registers[id] = buffer.getShort(REGISTERS_OFFSET + id * 2);
+				}
+				long cycles = buffer.getLong(CYCLES_OFFSET);
+				
+				VarHandle.loadLoadFence();
+				if ((long)LONG.getOpaque(buffer, SEQUENCE_OFFSET) == before)
+					return cycles;
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
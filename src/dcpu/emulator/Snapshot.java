@@ -0,0 +1,40 @@
+package dcpu.emulator;
+
+
+/**
+ * A saved machine state, as made by Cpu.snapshot() and brought back with
+ * Cpu.restore().  RAM is stored in pages, which are never modified once the
+ * snapshot is made, so snapshots taken from the same Cpu share every page that
+ * didn't change between them.
+ */
+public class Snapshot {
+	/** Number of words per page, and number of pages in RAM. */
+	static final int PAGE_SIZE  = 0x100;
+	static final int PAGE_COUNT = 0x10000 / PAGE_SIZE;
+	
+	final short[][] pages;
+	final short[]   registers;
+	final long      cycleCount;
+	final boolean   isHalted;
+	
+	Snapshot(short[][] pages, short[] registers, long cycleCount, boolean isHalted) {
+		this.pages      = pages;
+		this.registers  = registers;
+		this.cycleCount = cycleCount;
+		this.isHalted   = isHalted;
+	}
+	
+	/**
+	 * Returns the cycle count at the time of the snapshot.
+	 */
+	public long getCycleCount() {
+		return cycleCount;
+	}
+	
+	/**
+	 * Returns the word at the given address at the time of the snapshot.
+	 */
+	public short getMemory(int address) {
+		return pages[address / PAGE_SIZE][address % PAGE_SIZE];
+	}
+}
@@ -0,0 +1,283 @@
+package dcpu.emulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * Records the execution of a Cpu as a compact binary trace, which a
+ * TraceReplayer can later turn back into the machine state at any instruction.
+ * 
+ * The trace starts with the full machine state (see begin), followed by one
+ * record per executed instruction.  Nothing the replayer can work out itself
+ * is recorded: it reads the instruction word from its copy of RAM, and from
+ * that and the record knows the cycles taken and where SP and PC went.  Words
+ * (value and O) are written as two bytes little-endian, since they are rarely
+ * small; all other numbers as unsigned LEB128 varints:
+ * 
+ *   dst, src         effective operand locations: a register id, or 11 for
+ *                    literals, or 16 + a memory address; for a halt, only
+ *                    dst, as HALT
+ *   value            the value of `dst` afterwards (basic ops other than IFx,
+ *                    and JSR, where `dst` is the address pushed to)
+ *   O                the value of O afterwards (ADD through SHR)
+ *   skipped          for IFx, a byte: 1 if the next instruction was skipped,
+ *                    otherwise 0
+ *   PC               for JSR, the address jumped to, as its operand may have
+ *                    been read from a device
+ * 
+ * A typical instruction takes 2-6 bytes.  Records are collected in a buffer
+ * and written to the channel in large chunks.
+ * 
+ * Writes to RAM from outside the instructions, through Cpu.postWrite() or
+ * Cpu.writeMemory() (by events and devices), get a record of their own in
+ * between: EXTERNAL_WRITE, the address and the word written.  A device that
+ * writes while an instruction runs is recorded as writing just before that
+ * instruction.  The machine must not be modified in any other way while
+ * recording.
+ * 
+ * Recording never throws from the CPU thread: if writing fails, recording
+ * stops and close() throws the error.
+ */
+public class TraceRecorder implements Closeable {
+	static final int MAGIC   = 0x44435452; // "DCTR"
+	static final int VERSION = 3;
+	
+	/** Number of location codes reserved for registers, literals and the
+	 *  codes below. */
+	static final int REGISTER_LOCATIONS = 0x10;
+	
+	/** Codes that take the place of the destination for a halt, and that
+	 *  start the record of a write from outside. */
+	static final int HALT           = 0xc;
+	static final int EXTERNAL_WRITE = 0xd;
+	
+	/** Upper bound on the size of a single record, and of the header up to
+	 *  RAM, in bytes. */
+	private static final int MAX_RECORD_SIZE = 2 * 3 + 2 * 2 + 3;
+	private static final int HEADER_SIZE     = 4 + 1 + ChangeBatch.REGISTER_COUNT * 3 + 10 + 1;
+	
+	private final WritableByteChannel channel;
+	private final byte[]              buffer = new byte[64 * 1024];
+	private int                       position;
+	private IOException               error;
+	
+	private Cpu cpu;
+	
+	/**
+	 * Creates a recorder that writes to the given channel.  Pass it to
+	 * Cpu.setTraceRecorder to start recording.
+	 */
+	public TraceRecorder(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+	
+	/**
+	 * Writes the header: magic, version, the registers, cycle count, halted
+	 * flag (all as varints) and then RAM as alternating runs of zero words (given by their
+	 * length) and non-zero words (given by their length and the words).  A
+	 * recorder can only record a single run.
+	 */
+	void begin(Cpu cpu) {
+		if (this.cpu != null)
+			throw new IllegalStateException("The recorder has already been used.");
+		this.cpu = cpu;
+		short[] memory = cpu.memory;
+		
+		ensureSpace(HEADER_SIZE);
+		for (int shift=24; shift>=0; shift -= 8)
+			buffer[position++] = (byte)(MAGIC >>> shift);
+		buffer[position++] = (byte)VERSION;
+		for (int id=0; id<ChangeBatch.REGISTER_COUNT; id++)
+			putVarint(cpu.getRegister(id) & 0xffff);
+		putVarint(cpu.getCycleCount());
+		buffer[position++] = (byte)(cpu.isHalted() ? 1 : 0);
+		
+		for (int address=0; address<0x10000; ) {
+			int zeros = address;
+			while (zeros < 0x10000 && memory[zeros] == 0)
+				zeros++;
+			int words = zeros;
+			while (words < 0x10000 && memory[words] != 0)
+				words++;
+			
+			ensureSpace(2 * 3);
+			putVarint(zeros - address);
+			putVarint(words - zeros);
+			for (address=zeros; address<words; address++) {
+				ensureSpace(3);
+				putVarint(memory[address] & 0xffff);
+			}
+		}
+	}
+	
+	/**
+	 * Records the instruction at the given address that was just executed.
+	 * `dst` and `src` are the operand locations it used, or -1 for a halt.
+	 */
+	void record(int address, int insn, int dst, int src) {
+		if (error != null)
+			return;
+		ensureSpace(MAX_RECORD_SIZE);
+		
+		if (dst < 0) {
+			buffer[position++] = HALT;
+			return;
+		}
+		
+		int opcode = insn & 0xf;
+		putVarint(encodeLocation(dst));
+		putVarint(encodeLocation(src));
+		if (opcode < 0xc)
+			putWord(cpu.peek(dst));
+		if (opcode >= 0x2 && opcode <= 0x8)
+			putWord(cpu.o);
+		
+		if (opcode >= 0xc)
+			recordSkipped(address + ((insn >>> 16) & 3));
+		else if (opcode == 0)
+			recordPc();
+	}
+	
+	//-- Recording from compiled blocks.
+	
+	// A block compiled while recording (see BlockCodeGenerator) knows the
+	// locations that don't depend on registers when it is compiled.  It writes
+	// them as constants, and only the rest of each record through these.
+	
+	/**
+	 * Makes room for a record, and starts it with the lowest `count` bytes of
+	 * `bytes`, lowest first.
+	 */
+	void recordStart(int bytes, int count) {
+		ensureSpace(MAX_RECORD_SIZE);
+		recordBytes(bytes, count);
+	}
+	
+	/**
+	 * Writes the lowest `count` bytes of `bytes`, lowest first.
+	 */
+	void recordBytes(int bytes, int count) {
+		for (int i=0; i<count; i++) {
+			buffer[position++] = (byte)bytes;
+			bytes >>>= 8;
+		}
+	}
+	
+	void recordLocation(int location) {
+		putVarint(encodeLocation(location));
+	}
+	
+	void recordWord(int word) {
+		putWord(word);
+	}
+	
+	/**
+	 * Ends the record of an IFx, whose next instruction is at `next`.
+	 */
+	void recordSkipped(int next) {
+		buffer[position++] = (byte)(cpu.pc == (short)next ? 0 : 1);
+	}
+	
+	/**
+	 * Ends the record of a JSR.
+	 */
+	void recordPc() {
+		putVarint(cpu.pc & 0xffff);
+	}
+	
+	/**
+	 * Records a write to RAM from outside the instructions.
+	 */
+	void written(int address, short value) {
+		if (error != null)
+			return;
+		ensureSpace(1 + 3 + 2);
+		
+		buffer[position++] = EXTERNAL_WRITE;
+		putVarint(address);
+		putWord(value);
+	}
+	
+	/**
+	 * Maps an operand location so that registers and literals, which are the
+	 * most common, get the smallest numbers.
+	 */
+	static int encodeLocation(int location) {
+		if (location >= Cpu.LITERAL)
+			return ChangeBatch.REGISTER_COUNT;
+		return location >= 0x10000 ? location - 0x10000 : location + REGISTER_LOCATIONS;
+	}
+	
+	/**
+	 * Writes all buffered records to the channel.
+	 */
+	public void flush() throws IOException {
+		drain();
+		if (error != null)
+			throw error;
+	}
+	
+	/**
+	 * Writes all buffered records and closes the channel.  Throws the error
+	 * that stopped the recording, if any.
+	 */
+	@Override
+	public void close() throws IOException {
+		drain();
+		channel.close();
+		if (error != null)
+			throw error;
+	}
+	
+	private void ensureSpace(int bytes) {
+		if (buffer.length - position < bytes)
+			drain();
+	}
+	
+	/**
+	 * Writes the buffered records to the channel, or throws them away once
+	 * writing has failed.
+	 */
+	private void drain() {
+		ByteBuffer data = ByteBuffer.wrap(buffer, 0, position);
+		position = 0;
+		if (error != null)
+			return;
+		
+		try {
+			while (data.hasRemaining())
+				channel.write(data);
+		} catch (IOException ex) {
+			error = ex;
+		}
+	}
+	
+	private void putWord(int word) {
+		buffer[position++] = (byte)word;
+		buffer[position++] = (byte)(word >>> 8);
+	}
+	
+	private void putVarint(int value) {
+		byte[] buffer = this.buffer;
+		int    pos    = position;
+		
+		while ((value & ~0x7f) != 0) {
+			buffer[pos++] = (byte)((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[pos++] = (byte)value;
+		
+		position = pos;
+	}
+	
+	private void putVarint(long value) {
+		while ((value & ~0x7fL) != 0) {
+			buffer[position++] = (byte)((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte)value;
+	}
+}
@@ -0,0 +1,255 @@
+package dcpu.emulator;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+
+/**
+ * Rebuilds machine states from a trace written by a TraceRecorder.  The
+ * replayer starts at the state the trace was started in and moves forwards
+ * one instruction at a time, by applying the recorded changes rather than
+ * executing anything.  To look at an earlier instruction, open the trace
+ * again.
+ */
+public class TraceReplayer {
+	private final ReadableByteChannel channel;
+	private final ByteBuffer          buffer = ByteBuffer.allocateDirect(64 * 1024);
+	
+	private final short[] memory    = new short[0x10000];
+	private final short[] registers = new short[ChangeBatch.REGISTER_COUNT];
+	private long          cycleCount;
+	private boolean       isHalted;
+	private long          index;
+	
+	/**
+	 * Creates a replayer for the trace in the given channel, and reads the
+	 * state that the trace starts in.
+	 */
+	public TraceReplayer(ReadableByteChannel channel) throws IOException {
+		this.channel = channel;
+		buffer.flip();
+		
+		if (!fill(5) || buffer.getInt() != TraceRecorder.MAGIC)
+			throw new IOException("Not a DCPU trace.");
+		if (buffer.get() != TraceRecorder.VERSION)
+			throw new IOException("Unsupported trace version.");
+		
+		for (int id=0; id<registers.length; id++)
+			registers[id] = (short)readVarint();
+		cycleCount = readVarint();
+		isHalted   = readByte() != 0;
+		
+		for (int address=0; address<0x10000; ) {
+			address += readVarint();
+			int words = (int)readVarint();
+			for (int i=0; i<words; i++)
+				memory[address++] = (short)readVarint();
+		}
+	}
+	
+	/**
+	 * Applies the next instruction of the trace, along with the writes from
+	 * outside that came before it.  Returns false if the trace has ended; the
+	 * state is then only changed by writes at the very end of the trace.
+	 */
+	public boolean step() throws IOException {
+		int code;
+		for (;;) {
+			if (!fill(1))
+				return false;
+			
+			code = (int)readVarint();
+			if (code != TraceRecorder.EXTERNAL_WRITE)
+				break;
+			
+			int address = (int)readVarint();
+			memory[address] = (short)readWord();
+		}
+		
+		if (code == TraceRecorder.HALT) {
+			isHalted = true;
+			registers[Cpu.REG_PC]++;
+		} else {
+			apply(decodeLocation(code));
+		}
+		
+		index++;
+		return true;
+	}
+	
+	/**
+	 * Reads the rest of the record of an instruction that wrote to the given
+	 * location, and applies it.  The instruction is whatever is in RAM at PC
+	 * by now; the cycles it took and where it left SP and PC follow from it.
+	 */
+	private void apply(int dst) throws IOException {
+		int pc     = registers[Cpu.REG_PC] & 0xffff;
+		int word   = memory[pc] & 0xffff;
+		int opcode = word & 0xf;
+		int a = (word >>> 4) & 0x3f;
+		int b = (word >>> 10) & 0x3f;
+		
+		readVarint(); // src
+		short value = opcode < 0xc ? (short)readWord() : 0;
+		if (opcode >= 0x2 && opcode <= 0x8)
+			registers[Cpu.REG_O] = (short)readWord();
+		
+		if (opcode == 0) {
+			//JSR: SP ends up at the address pushed to.
+			cycleCount += 2 + Cpu.operandLength(b);
+			registers[Cpu.REG_SP] = (short)dst;
+			registers[Cpu.REG_PC] = (short)readVarint();
+		} else {
+			cycleCount += cycles(opcode) + Cpu.operandLength(a) + Cpu.operandLength(b);
+			registers[Cpu.REG_SP] += stackDelta(a) + stackDelta(b);
+			pc += Cpu.instructionLength(word);
+			if (opcode >= 0xc && readByte() != 0) {
+				cycleCount++;
+				pc += Cpu.instructionLength(memory[pc & 0xffff] & 0xffff);
+			}
+			registers[Cpu.REG_PC] = (short)pc;
+		}
+		// Storing to SP or PC overrides the above.
+		if (opcode < 0xc)
+			store(dst, value);
+	}
+	
+	/**
+	 * Moves forwards until the given number of instructions have been applied
+	 * since the start of the trace.  Returns false if the trace ends first.
+	 */
+	public boolean skipTo(long index) throws IOException {
+		if (index < this.index)
+			throw new IllegalArgumentException("Can't replay backwards.");
+		
+		while (this.index < index) {
+			if (!step())
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the number of instructions applied since the start of the trace.
+	 */
+	public long getInstructionIndex() {
+		return index;
+	}
+	
+	public long getCycleCount() {
+		return cycleCount;
+	}
+	
+	public boolean isHalted() {
+		return isHalted;
+	}
+	
+	public short getMemory(int address) {
+		return memory[address];
+	}
+	
+	/**
+	 * Returns the value of the register with the given id (see
+	 * Cpu.getRegister).
+	 */
+	public short getRegister(int id) {
+		return registers[id];
+	}
+	
+	/**
+	 * Returns the current state as a Snapshot, which can be loaded into a Cpu
+	 * with Cpu.restore() to inspect it or to continue running from it.
+	 */
+	public Snapshot toSnapshot() {
+		short[][] pages = new short[Snapshot.PAGE_COUNT][Snapshot.PAGE_SIZE];
+		for (int page=0; page<Snapshot.PAGE_COUNT; page++)
+			System.arraycopy(memory, page * Snapshot.PAGE_SIZE, pages[page], 0, Snapshot.PAGE_SIZE);
+		
+		return new Snapshot(pages, registers.clone(), cycleCount, isHalted);
+	}
+	
+	/**
+	 * Returns the cycles the basic operation with the given opcode takes, not
+	 * counting operand words.
+	 */
+	private static int cycles(int opcode) {
+		switch (opcode) {
+			case 0x1:
+			case 0x9:
+			case 0xa:
+			case 0xb: return 1;
+			case 0x5:
+			case 0x6: return 3;
+			default:  return 2;
+		}
+	}
+	
+	/**
+	 * Returns how much the operand with the given code moves SP: POP and PUSH
+	 * by one, and the rest not at all.
+	 */
+	private static int stackDelta(int code) {
+		return code == 0x18 ? 1 : code == 0x1a ? -1 : 0;
+	}
+	
+	/**
+	 * Turns a location as written by TraceRecorder back into a memory address,
+	 * or 0x10000 + a register id, or above for literals.
+	 */
+	private static int decodeLocation(int code) {
+		return code >= TraceRecorder.REGISTER_LOCATIONS
+				? code - TraceRecorder.REGISTER_LOCATIONS
+				: code + 0x10000;
+	}
+	
+	/**
+	 * Stores a value to an operand location.
+	 */
+	private void store(int location, short value) {
+		if (location < 0x10000)
+			memory[location] = value;
+		else if (location - 0x10000 < registers.length)
+			registers[location - 0x10000] = value;
+		// Anything above is a literal, which can't be written to.
+	}
+	
+	/**
+	 * Makes sure that at least the given number of bytes are buffered, reading
+	 * more from the channel if needed.  Returns false if the channel ends
+	 * before that.
+	 */
+	private boolean fill(int bytes) throws IOException {
+		while (buffer.remaining() < bytes) {
+			buffer.compact();
+			int read = channel.read(buffer);
+			buffer.flip();
+			
+			if (read == -1)
+				return false;
+		}
+		return true;
+	}
+	
+	private int readByte() throws IOException {
+		if (!fill(1))
+			throw new EOFException("Trace ends in the middle of a record.");
+		return buffer.get();
+	}
+	
+	private int readWord() throws IOException {
+		int low = readByte() & 0xff;
+		return low | (readByte() & 0xff) << 8;
+	}
+	
+	private long readVarint() throws IOException {
+		long value = 0;
+		for (int shift=0; ; shift += 7) {
+			int b = readByte();
+			value |= (long)(b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+	}
+}
@@ -15,6 +15,7 @@ import javax.swing.JMenuBar;
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import java.awt.BorderLayout;
 import java.awt.Font;
@@ -31,15 +32,27 @@ import java.io.FileWriter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
 
 import javax.swing.JSeparator;
 import javax.swing.JEditorPane;
 import javax.swing.JButton;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
 
-import dcpu.assembler.Assembler;
+import dcpu.assembler.AssemblySession;
 import dcpu.assembler.parser.SyntaxException;
+import dcpu.emulator.Breakpoints;
+import dcpu.emulator.ChangeBatch;
 import dcpu.emulator.Cpu;
+import dcpu.emulator.CpuMetrics;
 import dcpu.frontend.RegisterViewer;
 import dcpu.frontend.RamViewer;
 
@@ -64,29 +77,73 @@ public class DCPUMain extends JFrame {
 	
 	private short[] lastBinary;
 	
+	// The editor's contents, assembled as they're edited.
+	// TODO: Use correct filename.
+	private final AssemblySession session = new AssemblySession("<input>");
+	
+	private Breakpoints breakpoints;
+	
+	private final EventRing  events = new EventRing(1 << 16);
+	private final AtomicLong cycles = new AtomicLong();
+	
 	public DCPUMain() {
-		cpu = new Cpu(new Cpu.MemoryCallback() {
-			@Override
-			public void onRegisterChange(int id, short value) {
-				regViewer.updateRegister(id, value);
-			}
-			
+		// The CPU collects its changes and hands them over about 30 times per
+		// second, so an instruction only costs a bit in a bitmap.  The CPU
+		// thread puts each batch in a ring buffer, and the viewers are updated
+		// from it on the event dispatch thread (see drainEvents).
+		cpu = new Cpu(new Cpu.BatchCallback() {
 			@Override
-			public void onMemoryChange(int address, short value) {
-				ramViewer.updateMemoryAt(address, value);
+			public void onBatch(ChangeBatch batch) {
+				for (int i=0; i<batch.size(); i++) {
+					events.putMemory(batch.getAddress(i), batch.getValue(i));
+				}
+				for (int id=0; id<ChangeBatch.REGISTER_COUNT; id++) {
+					if (batch.isRegisterChanged(id)) {
+						events.putRegister(id, batch.getRegister(id));
+					}
+				}
+				cycles.lazySet(batch.getCycleCount());
 			}
 			
 			@Override
-			public void onCyclesChange(long cycleCount) {
-				cycleCountLabel.setText("Cycles: " + cycleCount);
+			public void onHalt() {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						btnAssemble.setEnabled(true);
+						btnRun.setEnabled(true);
+						btnStop.setEnabled(false);
+						btnStep.setEnabled(true);
+					}
+				});
 			}
-			
+		}, 0, 1000 / 30);
+		cpu.setClockRate(Cpu.DEFAULT_CLOCK_RATE);
+		
+		// Performance counters, for jconsole and the like.
+		try {
+			CpuMetrics.register(cpu, "DCPUMain");
+		} catch (JMException ex) {
+			// Only needed for monitoring, so run without them.
+		}
+		
+		breakpoints = new Breakpoints(new Breakpoints.Listener() {
 			@Override
-			public void onHalt() {
-				btnAssemble.setEnabled(true);
-				btnRun.setEnabled(true);
-				btnStop.setEnabled(false);
-				btnStep.setEnabled(true);
+			public void onHit(final Breakpoints.Kind kind, final int address) {
+				final int pc = cpu.getRegister(Cpu.REG_PC) & 0xffff;
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						btnAssemble.setEnabled(true);
+						btnRun.setEnabled(true);
+						btnStop.setEnabled(false);
+						btnStep.setEnabled(true);
+						
+						drainEvents();
+						errorArea.setText(String.format("Stopped at PC 0x%04x: %s at 0x%04x",
+								pc, kind.toString().toLowerCase(), address));
+					}
+				});
 			}
 		});
 		
@@ -99,6 +156,23 @@ public class DCPUMain extends JFrame {
 		editor = new JTextArea();
 		editor.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
 		editorScrollPane.setViewportView(editor);
+		
+		editor.getDocument().addDocumentListener(new DocumentListener() {
+			@Override
+			public void insertUpdate(DocumentEvent ev) {
+				editorChanged(ev);
+			}
+			
+			@Override
+			public void removeUpdate(DocumentEvent ev) {
+				editorChanged(ev);
+			}
+			
+			@Override
+			public void changedUpdate(DocumentEvent ev) {
+				// Only attributes changed.
+			}
+		});
 
 		regViewer = new RegisterViewer();
 		getContentPane().add(regViewer);
@@ -145,21 +219,29 @@ public class DCPUMain extends JFrame {
 				btnStop.setEnabled(false);
 				btnStep.setEnabled(true);
 				cpu.stop();
+				
+				// Wait for the CPU thread, so that it's the only one producing
+				// events while it runs.
+				if (cpuThread != null) {
+					try {
+						cpuThread.join();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
 			}
 		};
 		
 		btnAssemble.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent ev) {
-				String source = editor.getText();
-				
 				stopCpu.run();
 				
-				// TODO: Use correct filename.
 				try {
-					short[] binary = Assembler.assemble(source, "<input>");
+					short[] binary = session.assemble();
 					cpu.resetRegisters();
 					cpu.initMem(binary);
+					drainEvents();
 					ramViewer.replaceMemory(Arrays.copyOf(binary, 65536));
 					
 					errorArea.setText(""); // Clear the error label content.
@@ -198,6 +280,8 @@ public class DCPUMain extends JFrame {
 			@Override
 			public void actionPerformed(ActionEvent e) {
 				cpu.executeNext();
+				cpu.flushChanges();
+				drainEvents();
 			}
 		});
 		
@@ -211,6 +295,13 @@ public class DCPUMain extends JFrame {
 		this.cycleCountLabel = new JLabel("Cycles: 0");
 		getContentPane().add(this.cycleCountLabel);
 		
+		new Timer(1000 / 30, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				drainEvents();
+			}
+		}).start();
+		
 		// Setup constraints
 		springLayout.putConstraint(SpringLayout.NORTH, buttonPane, 10, SpringLayout.NORTH, getContentPane());
 		springLayout.putConstraint(SpringLayout.WEST,  buttonPane, 10, SpringLayout.WEST,  getContentPane());
@@ -404,6 +495,7 @@ public class DCPUMain extends JFrame {
 					
 					cpu.resetRegisters();
 					cpu.initMem(binary);
+					drainEvents();
 					ramViewer.replaceMemory(Arrays.copyOf(binary, 65536));
 					
 					reader.close();
@@ -469,6 +561,49 @@ public class DCPUMain extends JFrame {
 		JMenuItem mntmNewMenuItem_1 = new JMenuItem("Exit");
 		mnFile.add(mntmNewMenuItem_1);
 		
+		JMenu mnDebug = new JMenu("Debug");
+		menuBar.add(mnDebug);
+		
+		JMenuItem mntmBreakpoint = new JMenuItem("Toggle breakpoint...");
+		mnDebug.add(mntmBreakpoint);
+		
+		JMenuItem mntmReadWatch = new JMenuItem("Toggle read watchpoint...");
+		mnDebug.add(mntmReadWatch);
+		
+		JMenuItem mntmWriteWatch = new JMenuItem("Toggle write watchpoint...");
+		mnDebug.add(mntmWriteWatch);
+		
+		mnDebug.add(new JSeparator());
+		
+		JMenuItem mntmClearBreakpoints = new JMenuItem("Clear all");
+		mnDebug.add(mntmClearBreakpoints);
+		
+		mntmBreakpoint.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				toggleBreakpoint(Breakpoints.Kind.BREAKPOINT);
+			}
+		});
+		mntmReadWatch.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				toggleBreakpoint(Breakpoints.Kind.READ);
+			}
+		});
+		mntmWriteWatch.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				toggleBreakpoint(Breakpoints.Kind.WRITE);
+			}
+		});
+		mntmClearBreakpoints.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				breakpoints.clear();
+				cpu.setBreakpoints(null);
+			}
+		});
+		
 		JMenu mnHelp = new JMenu("Help");
 		menuBar.add(mnHelp);
 		
@@ -484,6 +619,128 @@ public class DCPUMain extends JFrame {
 		});
 	}
 	
+	/**
+	 * Asks for an address, and toggles the breakpoint or watchpoint of the
+	 * given kind there.
+	 */
+	private void toggleBreakpoint(Breakpoints.Kind kind) {
+		String input = JOptionPane.showInputDialog(this, "Address:",
+				"Toggle " + kind.toString().toLowerCase(), JOptionPane.QUESTION_MESSAGE);
+		
+		if (input == null) {
+			// User cancelled.
+			return;
+		}
+		
+		int address;
+		try {
+			address = Integer.decode(input.trim());
+		} catch (NumberFormatException ex) {
+			address = -1;
+		}
+		
+		if (address < 0 || address > 0xffff) {
+			JOptionPane.showMessageDialog(this, "Invalid address: " + input,
+					"Error!", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		
+		switch (kind) {
+			case BREAKPOINT:
+				breakpoints.setBreakpoint(address, !breakpoints.isBreakpoint(address));
+				break;
+			case READ:
+				breakpoints.setReadWatchpoint(address, !breakpoints.isReadWatchpoint(address));
+				break;
+			case WRITE:
+				breakpoints.setWriteWatchpoint(address, !breakpoints.isWriteWatchpoint(address));
+				break;
+		}
+		
+		cpu.setBreakpoints(breakpoints);
+	}
+	
+	/**
+	 * Passes the lines touched by an edit on to the assembly session, and
+	 * shows whether the source assembles now.
+	 */
+	private void editorChanged(DocumentEvent ev) {
+		Document doc  = ev.getDocument();
+		Element  root = doc.getDefaultRootElement();
+		
+		// Lines are only added or removed if the edit crossed a line feed;
+		// otherwise the edit is within one line.
+		int start, removed, added;
+		DocumentEvent.ElementChange change = ev.getChange(root);
+		if (change != null) {
+			start   = change.getIndex();
+			removed = change.getChildrenRemoved().length;
+			added   = change.getChildrenAdded().length;
+		} else {
+			start   = root.getElementIndex(ev.getOffset());
+			removed = added = 1;
+		}
+		
+		List<String> lines = new ArrayList<String>(added);
+		try {
+			for (int i=start; i<start+added; i++) {
+				Element line = root.getElement(i);
+				int end = Math.min(line.getEndOffset(), doc.getLength());
+				
+				String text = doc.getText(line.getStartOffset(), end - line.getStartOffset());
+				if (text.endsWith("\n"))
+					text = text.substring(0, text.length() - 1);
+				lines.add(text);
+			}
+		} catch (BadLocationException ex) {
+			// Can't happen, the offsets come from the document.
+			throw new IllegalStateException(ex);
+		}
+		
+		session.replaceLines(start, start + removed, lines);
+		
+		try {
+			session.assemble();
+			errorArea.setText("");
+		} catch (RuntimeException ex) {
+			// Most likely a SyntaxException, but the lexer can fail to parse
+			// numbers too.
+			errorArea.setText(ex.getMessage());
+		}
+	}
+	
+	/**
+	 * Shows the changes that the CPU has made since the last call in the
+	 * viewers.  Must be called on the event dispatch thread.
+	 */
+	private void drainEvents() {
+		boolean complete = events.drain(new EventRing.Handler() {
+			@Override
+			public void onRegisterChange(int id, short value) {
+				regViewer.updateRegister(id, value);
+			}
+			
+			@Override
+			public void onMemoryChange(int address, short value) {
+				ramViewer.updateMemoryAt(address, value);
+			}
+		});
+		
+		if (!complete) {
+			// The ring overflowed, so read everything from the CPU instead.
+			// The ring makes the dropped changes visible to this thread, and
+			// the viewers only redraw what differs.
+			for (int address=0; address<65536; address++) {
+				ramViewer.updateMemoryAt(address, cpu.memory[address]);
+			}
+			for (int id=0; id<ChangeBatch.REGISTER_COUNT; id++) {
+				regViewer.updateRegister(id, cpu.getRegister(id));
+			}
+		}
+		
+		cycleCountLabel.setText("Cycles: " + cycles.get());
+	}
+	
 	private void setupKeyListener() {
 		this.addKeyListener(new KeyAdapter() {
 			@Override
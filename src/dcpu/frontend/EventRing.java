@@ -0,0 +1,119 @@
+package dcpu.frontend;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A lock-free, single-producer single-consumer ring buffer of memory and
+ * register change events.  The CPU thread puts events without allocating or
+ * blocking; the event dispatch thread drains them periodically.
+ * 
+ * If the consumer falls so far behind that the ring fills up, further events
+ * are dropped and the next drain reports that the consumer has to refresh
+ * everything from the source instead.
+ */
+public class EventRing {
+	public static interface Handler {
+		public void onMemoryChange(int address, short value);
+		public void onRegisterChange(int id, short value);
+	}
+	
+	// Each event is a long: the value in the low 16 bits, the address or
+	// register id above that, and a flag telling registers from memory.
+	private static final long REGISTER_FLAG = 1L << 40;
+	
+	private final long[] events;
+	private final int    mask;
+	
+	// Number of events ever put and taken.  Each is only written by one side,
+	// and published with lazySet, which is all the ordering that's needed.
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+	
+	// The producer's most recently seen value of `head`.
+	private long cachedHead;
+	
+	// Number of events ever dropped.  Stored after every drop, so that a
+	// consumer that sees the new count also sees the change that was dropped.
+	private final AtomicLong dropped = new AtomicLong();
+	
+	// The consumer's most recently seen value of `dropped`.
+	private long seenDropped;
+	
+	/**
+	 * Creates a ring holding the given number of events, which must be a power
+	 * of two.
+	 */
+	public EventRing(int capacity) {
+		if (Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Capacity must be a power of two.");
+		}
+		
+		this.events = new long[capacity];
+		this.mask   = capacity - 1;
+	}
+	
+	/** Producer side: reports a change to memory. */
+	public void putMemory(int address, short value) {
+		put((long)address << 16 | (value & 0xffff));
+	}
+	
+	/** Producer side: reports a change to a register. */
+	public void putRegister(int id, short value) {
+		put(REGISTER_FLAG | (long)id << 16 | (value & 0xffff));
+	}
+	
+	private void put(long event) {
+		long t = tail.get();
+		
+		if (t - cachedHead >= events.length) {
+			cachedHead = head.get();
+			
+			if (t - cachedHead >= events.length) {
+				dropped.set(dropped.get() + 1);
+				return;
+			}
+		}
+		
+		events[(int)t & mask] = event;
+		tail.lazySet(t + 1);
+	}
+	
+	/**
+	 * Consumer side: passes all events put so far to the given handler, in
+	 * order.  Returns false, and throws away the pending events, if events
+	 * have been dropped since the last drain; the caller must then refresh
+	 * all state directly from its source.  Everything the producer did before
+	 * the dropped and thrown away events is visible to it by then, and events
+	 * dropped after this call are reported by the next one.
+	 */
+	public boolean drain(Handler handler) {
+		long d = dropped.get();
+		if (d != seenDropped) {
+			seenDropped = d;
+			head.lazySet(tail.get());
+			return false;
+		}
+		
+		long h = head.get()
+		   , t = tail.get();
+		
+		for (; h < t; h++) {
+			long event = events[(int)h & mask];
+			int  id    = (int)(event >>> 16) & 0x1ffff;
+			
+			if ((event & REGISTER_FLAG) != 0) {
+				handler.onRegisterChange(id, (short)event);
+			} else {
+				handler.onMemoryChange(id, (short)event);
+			}
+			
+			// Free up space as we go, in case the producer is waiting for it.
+			if ((h & 0xff) == 0xff)
+				head.lazySet(h + 1);
+		}
+		head.lazySet(t);
+		
+		return true;
+	}
+}
@@ -3,3 +3,9 @@
 [ -d bin ] || mkdir bin
 javac -d bin -cp src src/dcpu/AssemblerTest.java
 java -cp bin dcpu.AssemblerTest
+javac -d bin -cp src src/dcpu/AssemblerDiffTest.java
+java -cp bin dcpu.AssemblerDiffTest
+javac -d bin -cp src src/dcpu/AssemblerTimingTest.java
+java -cp bin dcpu.AssemblerTimingTest
+javac -d bin -cp src src/dcpu/IdleTest.java
+java -cp bin dcpu.IdleTest